@@ -0,0 +1,56 @@
+import basic.Diagram;
+import basic.Figure;
+import basic.Parser;
+import basic.Problem;
+import basic.Solution;
+import java.util.ArrayList;
+
+/**
+ * Prints what basic.Parser reads from each file given as argument (the
+ * problems and solutions, or the error message), using only the methods that
+ * the original parser and the current one have in common, so that the output
+ * of both versions can be compared with diff.
+ */
+public class ParserParity {
+
+    public static void main(String[] args) {
+        ArrayList<Problem> problems = new ArrayList<Problem>();
+        ArrayList<Solution> solutions = new ArrayList<Solution>();
+        int i, j, k;
+        for (String fileName : args) {
+            System.out.println("== " + new java.io.File(fileName).getName());
+            problems.clear();   solutions.clear();
+            try {
+                Parser.parse(fileName, problems, solutions);
+            } catch (Exception e) {
+                System.out.println("error: " + e.getMessage());   continue;
+            }
+            for (i = 0; i < problems.size(); i++) {
+                Problem p = problems.get(i);
+                System.out.println("problem " + p.id + " " + p.cells.length + "x"
+                        + p.cells[0].length + " figures " + p.numCellFigures);
+                for (j = 0; j < p.cells.length; j++) {
+                    for (k = 0; k < p.cells[j].length; k++) { print(p.cells[j][k]); }
+                }
+                for (j = 0; j < p.answers.length; j++) { print(p.answers[j]); }
+                StringBuilder sb = new StringBuilder("solution");
+                for (j = 0; j < solutions.get(i).values.length; j++) {
+                    sb.append(" ").append(solutions.get(i).values[j]);
+                }
+                System.out.println(sb);
+            }
+        }
+    }
+
+    private static void print(Diagram d) {
+        if (d == null) { System.out.println("  null");   return; }
+        System.out.println("  diagram " + d.row + "," + d.col);
+        for (int i = 0; i < d.figures.size(); i++) {
+            Figure f = d.figures.get(i);
+            System.out.println("    [" + f.getName() + "] " + f.getId() + " " + f.getIndex()
+                    + " " + f.getPositionX() + ":" + f.getPositionY() + " " + f.getScaleX()
+                    + ":" + f.getScaleY() + " " + f.getRotation() + " " + f.getReflectX());
+        }
+    }
+
+}
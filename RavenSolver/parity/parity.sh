@@ -0,0 +1,20 @@
+#!/bin/sh
+# Checks that basic.Parser reads the files in cases/ (and the problems in
+# dist/) exactly as the original parser did: same problems and solutions, or
+# same error message. Usage: parity.sh [commit with the original parser]
+BASE=${1:-dde544c}
+DIR=$(cd "$(dirname "$0")" && pwd)
+TMP=$(mktemp -d)
+trap 'rm -rf "$TMP"' EXIT
+mkdir -p "$TMP/old/src" "$TMP/old/classes" "$TMP/new"
+(cd "$DIR/.." && git archive "$BASE" src) | tar -x -C "$TMP/old" || exit 1
+javac -nowarn -d "$TMP/old/classes" $(find "$TMP/old/src" -name "*.java") "$DIR/ParserParity.java" || exit 1
+javac -nowarn -d "$TMP/new" $(find "$DIR/../src" -name "*.java") "$DIR/ParserParity.java" || exit 1
+FILES="$DIR/../dist/problems.txt $(ls "$DIR"/cases/*.txt)"
+java -cp "$TMP/old/classes" ParserParity $FILES > "$TMP/old.txt"
+java -cp "$TMP/new" ParserParity $FILES > "$TMP/new.txt"
+if diff "$TMP/old.txt" "$TMP/new.txt"; then
+    echo "Parser parity OK ($(grep -c '^==' "$TMP/new.txt") files)"
+else
+    exit 1
+fi
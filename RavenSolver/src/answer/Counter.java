@@ -25,6 +25,10 @@ public class Counter {
         return c;
     }
 
+    public int length() {
+        return digits.length;
+    }
+
     public int getDigit(int i) {
         return digits[i];
     }
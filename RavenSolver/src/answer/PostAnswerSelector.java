@@ -1,42 +1,136 @@
 package answer;
 
 import basic.Diagram;
+import basic.Parallel;
 import basic.Problem;
 import basic.Solution;
 import optimization.*;
 import rule.Rule;
+import rule.KnownEqualities;
 import rule.RuleSelector;
+import rule.TransformCache;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Comparator;
 
 public class PostAnswerSelector {
     private static final int MAX_RULES = 20;
     private Problem problem;
-    private RuleSelector bestRuleSelector, currentRuleSelector;
-    private Diagram[] bestSolution, currentSolution;
+    private RuleSelector bestRuleSelector;
+    private Diagram[] bestSolution;
+    private Diagram[][][] placements;   // [missing cell][answer][first index offset]
+    private TransformCache transformCache;   // shared by all the candidates
+    private KnownEqualities knownEqualities;   // shared by all the candidates
+    private Candidate[] candidates;   // kept from one level to the next
     private Counter counter;
     private StringBuilder report;
     private boolean tiedScores, solved;
     private int level;
+    private int solvedLevel;   // level of the last evaluation
+    private int[] beamWidths;   // for each level (0 for no limit)
+    private int margin, bestCost;   // iterative deepening (margin < 0 if it is not used)
+    private boolean pruning;
+    private int screenSize;   // candidates kept by the pre-screening (0 if it is not used)
 
     public PostAnswerSelector(Problem p) {
-        problem = p;   bestRuleSelector = null;   currentRuleSelector = null;
+        problem = p;   bestRuleSelector = null;
         bestSolution = new Diagram[problem.missingCells.length];
         Arrays.fill(bestSolution, null);
-        currentSolution = new Diagram[problem.missingCells.length];
-        for (int i = 0; i < currentSolution.length; i++) {
-            currentSolution[i] = new Diagram();
-        }
         counter = new Counter(problem.missingCells.length, problem.answers.length-1);
-        tiedScores = true;   solved = false;   level = 1;
+        tiedScores = true;   solved = false;   level = 1;   solvedLevel = 1;
+        beamWidths = new int[0];   margin = -1;   bestCost = Integer.MAX_VALUE;
+        pruning = false;   screenSize = 0;
+        candidates = null;
+        // the figures of a missing cell are indexed after those of the known
+        // cells and of the previous missing cells
+        int maxFigures = 0;
+        for (int i = 0; i < problem.answers.length; i++) {
+            maxFigures = Math.max(maxFigures, problem.answers[i].figures.size());
+        }
+        placements = new Diagram[problem.missingCells.length][problem.answers.length]
+                [(problem.missingCells.length-1)*maxFigures + 1];
+        // the known cells and the placed answers are never modified, and the
+        // cache compares diagrams by identity, so it remains valid when the
+        // answers placed into the missing cells change
+        transformCache = new TransformCache();
+        knownEqualities = new KnownEqualities(problem);
     }
 
     public void solveNextLevel() {
-        level++;   select();
+        level++;
+        // iterative deepening: a solution that is not tied is kept
+        if ( (margin >= 0) && solved && !tiedScores ) { return; }
+        select();
     }
 
     public void setLevel(int i) {
         if (i < 1) { throw new IllegalArgumentException("Invalid level"); }
         level = i;   solved = false;
+        // the candidates discarded by the iterative deepening must be evaluated again
+        if ( (margin >= 0) && (i < solvedLevel) ) { candidates = null; }
+    }
+
+    /**
+     * Enables the iterative deepening: each level only evaluates the candidate
+     * solutions whose cost in the previous level was at most margin above the
+     * best one, and once a solution is not tied, the next levels keep it
+     * without evaluating anything. A negative margin disables it (the default).
+     */
+    public void setDeepeningMargin(int margin) {
+        this.margin = margin;   candidates = null;
+    }
+
+    /**
+     * Enables the pruning of candidate solutions (disabled by default): after
+     * the greedy selection, a candidate is not optimized any further if a lower
+     * bound of its cost (Utils.costLowerBound of the selected rules, which the
+     * steepest descent can only remove) is higher than the cost of the
+     * candidate with the lowest bound (plus the margin of the iterative
+     * deepening), which is completed first. Such a candidate could neither win
+     * nor tie, so the solution is the same, and the pruned candidates do not
+     * depend on the order in which the candidates are evaluated (or on the
+     * number of threads). A pruned candidate is completed if it is needed in a
+     * later level.
+     */
+    public void setPruning(boolean enabled) {
+        pruning = enabled;
+    }
+
+    /**
+     * Enables the pre-screening (0, the default, disables it): the candidate
+     * solutions are first ranked by a PreAnswerSelector in level 2 (which
+     * induces the rules only once, from the known cells), and only the first
+     * size ones, and those tied with the last of them, are evaluated.
+     */
+    public void setPreScreening(int size) {
+        if (size < 0) { throw new IllegalArgumentException("Invalid size"); }
+        screenSize = size;   candidates = null;
+    }
+
+    /**
+     * Returns true if the correct solution was discarded by the pre-screening.
+     */
+    public boolean isScreenedOut(Solution correctSolution) {
+        if (candidates == null) { return false; }
+        int j;   Candidate c;
+        for (int i = 0; i < candidates.length; i++) {
+            c = candidates[i];   j = 0;
+            while ( (j < c.answers.length)
+            && (problem.answers[ c.answers[j] ].col+1 == correctSolution.values[j]) ) { j++; }
+            if (j == c.answers.length) { return c.screenedOut; }
+        }
+        return false;
+    }
+
+    /**
+     * Limits the expansion of the rules of every candidate solution in a level
+     * (see RuleSelector.setBeamWidth).
+     */
+    public void setBeamWidth(int level, int width) {
+        if ( (level < 3) || (width < 0) ) { throw new IllegalArgumentException(); }
+        if (level >= beamWidths.length) { beamWidths = Arrays.copyOf(beamWidths, level+1); }
+        beamWidths[level] = width;
+        candidates = null;   // the rules already generated would not be limited
     }
     
     public boolean isCorrect(Solution correctSolution) {
@@ -58,7 +152,9 @@ public class PostAnswerSelector {
     public String toString() {
         if (!solved) { return "The problem has not been solved yet\n"; }
         StringBuilder sb = new StringBuilder();
-        sb.append("Level ").append(level).append("\n");
+        sb.append("Level ").append(level);
+        if (solvedLevel != level) { sb.append(" (solved in level ").append(solvedLevel).append(")"); }
+        sb.append("\n");
         if (bestRuleSelector == null) {
             sb.append("No selected rules\n");   return sb.toString();
         }
@@ -80,58 +176,232 @@ public class PostAnswerSelector {
 
     private void select() {
         Arrays.fill(bestSolution, null);
-        int i, j, bestCost = Integer.MAX_VALUE, currentCost, tmpNumCellFigures;
-        boolean stop;   Diagram[] tmpMissingCells;
-        StringBuilder currentCostString = new StringBuilder();
-        // evaluate each possible solution
-        counter.clear();   tiedScores = false;   report = new StringBuilder();
+        int i;   boolean stop;
+        // list each possible solution (only once: each candidate keeps its rule
+        // selector, which continues from the last level that it solved). This
+        // warm start keeps the problem view and the rules of every candidate
+        // that is still evaluated (answers^missingCells of them, at most) in
+        // memory from one level to the next, so the candidates discarded by
+        // the iterative deepening release them
         int permutations = (int) Math.pow(problem.answers.length, problem.missingCells.length);
-        int iteration = 1;
-        do {
-            System.out.println("\tSolution " + iteration + "/" + permutations);
-            // complete matrix
-            tmpNumCellFigures = problem.numCellFigures;
-            for (i = 0; i < problem.missingCells.length; i++) {
-                currentSolution[i] = (Diagram) problem.answers[ counter.getDigit(i) ].clone();
-                currentSolution[i].row = problem.missingCells[i].row;
-                currentSolution[i].col = problem.missingCells[i].col;
-                for (j = 0; j < currentSolution[i].figures.size(); j++) {
-                    currentSolution[i].figures.get(j).setIndex(problem.numCellFigures);
-                    problem.numCellFigures++;
+        if (candidates == null) {
+            candidates = new Candidate[permutations];
+            counter.clear();   i = 0;
+            do {
+                candidates[i] = new Candidate(counter, i+1);
+                placeAnswers(candidates[i]);   i++;
+                stop = counter.inc();
+            } while (!stop);
+            if (screenSize > 0) { screen(); }
+        } else if (margin >= 0) {
+            // iterative deepening: discard the candidates that were too far
+            // from the best one in the previous level
+            for (i = 0; i < candidates.length; i++) {
+                if (candidates[i].screenedOut) { continue; }   // never evaluated
+                if ( candidates[i].pruned || (candidates[i].cost - margin > bestCost) ) {
+                    candidates[i].discarded = true;   // until the candidates are listed again
+                    candidates[i].ruleSelector = null;   candidates[i].problem = null;
                 }
-                problem.cells[currentSolution[i].row][currentSolution[i].col] = currentSolution[i];
             }
-            tmpMissingCells = problem.missingCells;   problem.missingCells = null;
-            // evaluate
-            currentRuleSelector = new RuleSelector(problem, MAX_RULES);
-            for (i = 2; i <= level; i++) {
-                currentRuleSelector.greedySelection();
-                SteepestDescent.run(currentRuleSelector.getSelectedRules(),
-                        currentRuleSelector.getSelectedRules(), MAX_RULES,
-                        problem.numCellFigures);
-                currentRuleSelector.updateSelectedRules();
+        }
+        // evaluate them (candidates are independent, so they can be evaluated
+        // at the same time)
+        Parallel.forRange(0, candidates.length, 1, new Parallel.Body() {
+            public void run(int start, int end) {
+                for (int i = start; i < end; i++) { evaluate(candidates[i], candidates.length); }
+            }
+        });
+        if (pruning) { prune(); }
+        // select the best solution, in the same order as they were listed
+        tiedScores = false;   report = new StringBuilder();   Candidate c;
+        bestCost = Integer.MAX_VALUE;
+        for (i = 0; i < candidates.length; i++) {
+            c = candidates[i];
+            if (c.discarded) {
+                report.append("\tSolution (").append(c.label);
+                report.append("), Discarded in level ").append(c.level+1).append("\n");
+                continue;
+            }
+            if (c.screenedOut) {
+                report.append("\tSolution (").append(c.label);
+                report.append("), Screened out, Score (").append(c.score[0]).append(",");
+                report.append(c.score[1]).append(",").append(c.score[2]).append(")\n");
+                continue;
+            }
+            if (c.pruned) {
+                report.append("\tSolution (").append(c.label);
+                report.append("), Pruned, Cost bound: ").append(c.bound).append("\n");
+                continue;
             }
-            currentCost = Utils.cost(currentRuleSelector.getSelectedRules(),
-                    problem.numCellFigures, currentCostString);
-            // restore matrix
-            problem.numCellFigures = tmpNumCellFigures;
-            problem.missingCells = tmpMissingCells;
             // update best solution
-            if (currentCost < bestCost) {
-                bestCost = currentCost;   bestRuleSelector = currentRuleSelector;
-                for (i = 0; i < bestSolution.length; i++) {
-                    bestSolution[i] = problem.answers[ counter.getDigit(i) ];
+            if (c.cost < bestCost) {
+                bestCost = c.cost;   bestRuleSelector = c.ruleSelector;
+                for (int j = 0; j < bestSolution.length; j++) {
+                    bestSolution[j] = problem.answers[ c.answers[j] ];
                 }
                 tiedScores = false;
-            } else if (currentCost == bestCost) { tiedScores = true; }
+            } else if (c.cost == bestCost) { tiedScores = true; }
             // report
-            report.append("\tSolution (").append(counter);
-            report.append("), Cost: ").append(currentCost).append(" (");
-            report.append(currentCostString).append(")\n");
-            // next list
-            stop = counter.inc();   iteration++;
-        } while (!stop);
-        solved = true;
+            report.append("\tSolution (").append(c.label);
+            report.append("), Cost: ").append(c.cost).append(" (");
+            report.append(c.costString).append(")\n");
+        }
+        solved = true;   solvedLevel = level;
+    }
+
+    private void evaluate(Candidate c, int permutations) {
+        if (c.discarded || c.screenedOut) { return; }
+        System.out.println("\tSolution " + c.iteration + "/" + permutations);
+        int i;
+        if ( (c.ruleSelector == null) || (c.level > level) ) {
+            c.problem = new Problem(problem, c.cells);
+            c.ruleSelector = new RuleSelector(c.problem, MAX_RULES, transformCache, knownEqualities);
+            for (i = 3; i < beamWidths.length; i++) {
+                if (beamWidths[i] > 0) { c.ruleSelector.setBeamWidth(i, beamWidths[i]); }
+            }
+            c.level = 1;   c.pending = false;
+        }
+        c.pruned = false;
+        // complete the level in which the candidate was pruned
+        if (c.pending) { descend(c);   c.pending = false; }
+        for (i = c.level+1; i <= level; i++) {
+            c.ruleSelector.greedySelection();   c.level = i;
+            if (pruning && (i == level)) {
+                // the descent waits until prune() knows the incumbent
+                c.bound = Utils.costLowerBound(c.ruleSelector.getSelectedRules(),
+                        c.problem.numCellFigures);
+                c.pending = true;   return;
+            }
+            descend(c);
+        }
+        complete(c);
+    }
+
+    /**
+     * Completes the candidate with the lowest bound (the first one on ties),
+     * whose cost is the incumbent, and then the candidates whose bound does
+     * not exceed it (plus the margin); the rest are pruned.
+     */
+    private void prune() {
+        Candidate c, seed = null;   int i, incumbent = Integer.MAX_VALUE;
+        for (i = 0; i < candidates.length; i++) {
+            c = candidates[i];
+            if (c.discarded || c.screenedOut) { continue; }
+            if (!c.pending) { incumbent = Math.min(incumbent, c.cost); }   // already complete
+            else if ( (seed == null) || (c.bound < seed.bound) ) { seed = c; }
+        }
+        if (seed == null) { return; }
+        complete(seed);   incumbent = Math.min(incumbent, seed.cost);
+        final int limit = incumbent;
+        Parallel.forRange(0, candidates.length, 1, new Parallel.Body() {
+            public void run(int start, int end) {
+                Candidate c;
+                for (int i = start; i < end; i++) {
+                    c = candidates[i];
+                    if (c.discarded || c.screenedOut || !c.pending) { continue; }
+                    if ( (c.bound != Integer.MAX_VALUE) && (c.bound - Math.max(margin, 0) > limit) ) {
+                        c.pruned = true;   c.cost = Integer.MAX_VALUE;   c.costString = null;
+                    } else { complete(c); }
+                }
+            }
+        });
+    }
+
+    /**
+     * Runs the pending descent of the candidate, if any, and computes its cost.
+     */
+    private void complete(Candidate c) {
+        if (c.pending) { descend(c);   c.pending = false; }
+        StringBuilder costString = new StringBuilder();
+        c.cost = Utils.cost(c.ruleSelector.getSelectedRules(), c.problem.numCellFigures,
+                costString);
+        c.costString = costString.toString();
+    }
+
+    /**
+     * Keeps the first screenSize candidates in the ranking of a PreAnswerSelector,
+     * and those tied with the last of them.
+     */
+    private void screen() {
+        PreAnswerSelector preSelector = new PreAnswerSelector(problem);
+        preSelector.solveNextLevel();
+        final ArrayList<int[]> scores = preSelector.getScores();
+        if ( (scores == null) || (scores.size() <= screenSize) ) { return; }
+        // best scores first, in the order of the candidates on ties
+        Integer[] ranking = new Integer[scores.size()];   int i;
+        for (i = 0; i < ranking.length; i++) {
+            ranking[i] = i;   candidates[i].score = scores.get(i);
+        }
+        Arrays.sort(ranking, new Comparator<Integer>() {
+            public int compare(Integer i1, Integer i2) {
+                int cmp = PreAnswerSelector.compareScores(scores.get(i2), scores.get(i1));
+                return (cmp != 0) ? cmp : i1 - i2;
+            }
+        });
+        int[] last = scores.get(ranking[screenSize-1]);
+        for (i = screenSize; i < ranking.length; i++) {
+            if (PreAnswerSelector.compareScores(scores.get(ranking[i]), last) < 0) {
+                candidates[ranking[i]].screenedOut = true;
+            }
+        }
+    }
+
+    private void descend(Candidate c) {
+        SteepestDescent.run(c.ruleSelector.getSelectedRules(),
+                c.ruleSelector.getSelectedRules(), MAX_RULES, c.problem.numCellFigures);
+        c.ruleSelector.updateSelectedRules();
+    }
+
+    /**
+     * Defines the diagrams that complete the matrix for a candidate solution.
+     * Each answer is copied into a missing cell only once for each possible
+     * index of its first figure, and the copy is shared by every candidate
+     * solution that needs it (these diagrams are never modified).
+     */
+    private void placeAnswers(Candidate c) {
+        int i, j, firstIndex = problem.numCellFigures, offset;   Diagram d;
+        c.cells = new Diagram[problem.missingCells.length];
+        for (i = 0; i < c.cells.length; i++) {
+            offset = firstIndex - problem.numCellFigures;
+            d = placements[i][ c.answers[i] ][offset];
+            if (d == null) {
+                d = (Diagram) problem.answers[ c.answers[i] ].clone();
+                d.row = problem.missingCells[i].row;   d.col = problem.missingCells[i].col;
+                for (j = 0; j < d.figures.size(); j++) {
+                    d.figures.get(j).setIndex(firstIndex + j);
+                }
+                placements[i][ c.answers[i] ][offset] = d;
+            }
+            c.cells[i] = d;   firstIndex += d.figures.size();
+        }
+    }
+
+    // private classes ---------------------------------------------------------
+
+    private static class Candidate {
+        private int[] answers;
+        private Diagram[] cells;
+        private String label;
+        private int iteration, cost;
+        private String costString;
+        private Problem problem;
+        private RuleSelector ruleSelector;
+        private int level;   // last level solved by ruleSelector
+        private boolean discarded;   // by the iterative deepening
+        private boolean pruned, pending;   // pending: the descent of the last level
+        private int bound;   // lower bound of the cost, if it was pruned
+        private boolean screenedOut;
+        private int[] score;   // of the pre-screening
+
+        public Candidate(Counter counter, int iteration) {
+            answers = new int[counter.length()];
+            for (int i = 0; i < answers.length; i++) { answers[i] = counter.getDigit(i); }
+            label = counter.toString();   this.iteration = iteration;   cells = null;
+            cost = Integer.MAX_VALUE;   costString = null;
+            problem = null;   ruleSelector = null;   level = 1;   discarded = false;
+            pruned = false;   pending = false;   bound = 0;
+            screenedOut = false;   score = null;
+        }
     }
 
 }
@@ -17,6 +17,7 @@ public class PreAnswerSelector {
     private Counter counter;
     private StringBuilder report;
     private boolean tiedScores;
+    private ArrayList<int[]> scores;   // of each possible solution, in the order of counter
 
     public PreAnswerSelector(Problem p) {
         ruleSelector = new RuleSelector(p, MAX_RULES);   problem = p;
@@ -24,7 +25,7 @@ public class PreAnswerSelector {
         Arrays.fill(selectedSolution, null);
         currentSolution = new Diagram[problem.missingCells.length];
         counter = new Counter(problem.missingCells.length, problem.answers.length-1);
-        tiedScores = true;
+        tiedScores = true;   scores = null;
     }
 
     public void solveNextLevel() {
@@ -43,6 +44,15 @@ public class PreAnswerSelector {
         return true;
     }
 
+    /**
+     * Returns the scores of the possible solutions in the last level, in the
+     * order in which the counter lists them (null if no rules were selected).
+     * A score is better than another if compareScores(score, other) > 0.
+     */
+    ArrayList<int[]> getScores() {
+        return scores;
+    }
+
     @Override
     public String toString() {
         StringBuilder sb = new StringBuilder();
@@ -67,13 +77,18 @@ public class PreAnswerSelector {
     // private methods ---------------------------------------------------------
 
     private void select() {
-        Arrays.fill(selectedSolution, null);
+        Arrays.fill(selectedSolution, null);   scores = null;
         if (ruleSelector.getSelectedRules().isEmpty()) { return; }
         int i, cmp;   boolean stop;
-        int[] bestScore = new int[3], currentScore = new int[3];
+        int[] bestScore = new int[3], currentScore;
+        // the missing cells are filled with each possible solution, and then restored
+        Diagram[] missingCells = new Diagram[problem.missingCells.length];
+        for (i = 0; i < missingCells.length; i++) {
+            missingCells[i] = problem.cells[problem.missingCells[i].row][problem.missingCells[i].col];
+        }
         // evaluate each possible solution
         counter.clear();   Arrays.fill(bestScore, -1);
-        tiedScores = false;   report = new StringBuilder();
+        tiedScores = false;   report = new StringBuilder();   scores = new ArrayList<int[]>();
         do {
             // define list
             for (i = 0; i < problem.missingCells.length; i++) {
@@ -81,7 +96,7 @@ public class PreAnswerSelector {
                 problem.cells[problem.missingCells[i].row][problem.missingCells[i].col] = currentSolution[i];
             }
             // evaluate
-            evaluateSolution(currentScore);
+            currentScore = new int[3];   evaluateSolution(currentScore);   scores.add(currentScore);
             cmp = compareScores(currentScore, bestScore);
             if (cmp > 0) {
                 System.arraycopy(currentScore,0, bestScore,0, bestScore.length);
@@ -95,6 +110,9 @@ public class PreAnswerSelector {
             // next list
             stop = counter.inc();
         } while (!stop);
+        for (i = 0; i < missingCells.length; i++) {
+            problem.cells[problem.missingCells[i].row][problem.missingCells[i].col] = missingCells[i];
+        }
     }
     
     private void evaluateSolution(int[] score) {
@@ -114,7 +132,7 @@ public class PreAnswerSelector {
         }
     }
 
-    private static int compareScores(int[] s1, int[] s2) {
+    static int compareScores(int[] s1, int[] s2) {
         // more coverage
         if (s1[0] > s2[0]) { return 1; }
         if (s1[0] < s2[0]) { return -1; }
@@ -0,0 +1,254 @@
+package basic;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+
+/**
+ * Compact binary encoding of a problem file. The file is memory-mapped, and
+ * only the header, the name table and the problem offsets are read when it is
+ * opened; the diagrams and figures of a problem are built when it is requested.
+ * <p>
+ * Layout (big-endian): magic, version, offset of the index; the problems; and
+ * the index (figure names and the offset of each problem). A problem is stored
+ * as its id, numRows, numCols, numCellFigures, the cells (row by row), the
+ * answers and the solution values. A diagram is stored as its number of
+ * figures (NULL_DIAGRAM for a missing cell) followed by its figures, and a
+ * figure as its name index, positionX, positionY, scaleX, scaleY, rotation
+ * and reflectX. The index of a name in the table is the shape id of its figures.
+ * The offsets are ints, and a single mapping cannot exceed 2 GB, so larger
+ * corpora are rejected (they must be split into several files).
+ */
+public class BinaryCorpus implements ProblemReader {
+    private static final int MAGIC = 0x52504D43, VERSION = 1;   // "RPMC"
+    private static final int HEADER_SIZE = 12, NULL_DIAGRAM = -1;
+    private static final long MAX_SIZE = Integer.MAX_VALUE;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private MappedByteBuffer buffer;
+    private SymbolTable symbols;   // figure names
+    private int[] offsets;
+    private int current;
+    private Problem problem;
+    private Solution solution;
+
+    public BinaryCorpus(String fileName) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(fileName, "r");
+        try {
+            FileChannel channel = file.getChannel();
+            if (channel.size() > MAX_SIZE) {
+                throw new IOException("Binary corpus larger than 2 GB: " + fileName);
+            }
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally { file.close(); }   // the mapping remains valid
+        if ( (buffer.limit() < HEADER_SIZE) || (buffer.getInt(0) != MAGIC) ) {
+            throw new IOException("Invalid binary corpus: " + fileName);
+        }
+        if (buffer.getInt(4) != VERSION) {
+            throw new IOException("Unsupported binary corpus version: " + buffer.getInt(4));
+        }
+        // read the index
+        ByteBuffer b = buffer.duplicate();   b.position(buffer.getInt(8));   int i;
+        int numNames = b.getInt();   symbols = new SymbolTable();
+        for (i = 0; i < numNames; i++) {
+            if (symbols.intern(getString(b)) != i) {
+                throw new IOException("Duplicated figure name in binary corpus: " + fileName);
+            }
+        }
+        offsets = new int[b.getInt()];
+        for (i = 0; i < offsets.length; i++) { offsets[i] = b.getInt(); }
+        current = -1;   problem = null;   solution = null;
+    }
+
+    public static boolean isBinary(String fileName) throws IOException {
+        DataInputStream in = new DataInputStream(new FileInputStream(fileName));
+        try { return (in.readInt() == MAGIC); }
+        catch (IOException e) { return false; }   // shorter than the magic number
+        finally { in.close(); }
+    }
+
+    /**
+     * Converts a problem file into a binary corpus, and returns the number of
+     * converted problems.
+     */
+    public static int convert(String textFile, String binaryFile) throws IOException {
+        Parser parser = new Parser(textFile);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(binaryFile)));
+        ArrayList<Integer> offsets = new ArrayList<Integer>();
+        int i, indexOffset;
+        try {
+            out.writeInt(MAGIC);   out.writeInt(VERSION);   out.writeInt(0);
+            while (parser.next()) {
+                offsets.add(out.size());
+                writeProblem(parser.getProblem(), parser.getSolution(), out);
+                checkSize(out, binaryFile);
+            }
+            indexOffset = out.size();
+            // the shape ids given by the parser are the indices of the names
+            SymbolTable symbols = parser.getSymbols();   out.writeInt(symbols.size());
+            for (i = 0; i < symbols.size(); i++) { putString(symbols.getName(i), out); }
+            out.writeInt(offsets.size());
+            for (i = 0; i < offsets.size(); i++) { out.writeInt(offsets.get(i)); }
+            checkSize(out, binaryFile);
+        } finally { out.close();   parser.close(); }
+        // write the offset of the index in the header
+        RandomAccessFile file = new RandomAccessFile(binaryFile, "rw");
+        try { file.seek(8);   file.writeInt(indexOffset); }
+        finally { file.close(); }
+        return offsets.size();
+    }
+
+    public int size() {
+        return offsets.length;
+    }
+
+    /**
+     * Decodes the problem i and its solution (in a single read), which are
+     * then returned by getProblem() and getSolution(). The next call to next()
+     * reads the problem i+1.
+     */
+    public void read(int i) {
+        ByteBuffer b = buffer.duplicate();   b.position(offsets[i]);
+        problem = readProblem(b);   solution = readSolution(problem, b);   current = i;
+    }
+
+    public boolean next() {
+        problem = null;   solution = null;
+        if (current+1 >= offsets.length) { return false; }
+        read(current+1);
+        return true;
+    }
+
+    public Problem getProblem() {
+        return problem;
+    }
+
+    public Solution getSolution() {
+        return solution;
+    }
+
+    public void close() {
+        // the mapping is released when the buffer is garbage collected
+        buffer = null;   problem = null;   solution = null;
+    }
+
+    // private methods ---------------------------------------------------------
+
+    /**
+     * DataOutputStream.size() stops at Integer.MAX_VALUE, which is also the
+     * limit of the offsets.
+     */
+    private static void checkSize(DataOutputStream out, String binaryFile) throws IOException {
+        if (out.size() >= MAX_SIZE) {
+            throw new IOException("Binary corpus larger than 2 GB: " + binaryFile);
+        }
+    }
+
+    private static void writeProblem(Problem p, Solution s, DataOutputStream out)
+    throws IOException {
+        int i, j;
+        putString(p.id, out);
+        out.writeInt(p.cells.length);   out.writeInt(p.cells[0].length);
+        out.writeInt(p.numCellFigures);
+        for (i = 0; i < p.cells.length; i++) {
+            for (j = 0; j < p.cells[i].length; j++) {
+                writeDiagram(p.cells[i][j], out);
+            }
+        }
+        out.writeInt(p.answers.length);
+        for (i = 0; i < p.answers.length; i++) {
+            writeDiagram(p.answers[i], out);
+        }
+        out.writeInt(s.values.length);
+        for (i = 0; i < s.values.length; i++) { out.writeInt(s.values[i]); }
+    }
+
+    private static void writeDiagram(Diagram d, DataOutputStream out) throws IOException {
+        if (d == null) { out.writeInt(NULL_DIAGRAM);   return; }
+        out.writeInt(d.figures.size());   Figure f;
+        for (int i = 0; i < d.figures.size(); i++) {
+            f = d.figures.get(i);
+            out.writeInt(f.getShape());
+            out.writeInt(f.getPositionX());   out.writeInt(f.getPositionY());
+            out.writeFloat(f.getScaleX());   out.writeFloat(f.getScaleY());
+            out.writeFloat(f.getRotation());   out.writeBoolean(f.getReflectX());
+        }
+    }
+
+    private Problem readProblem(ByteBuffer b) {
+        Problem p = new Problem();
+        p.id = getString(b);
+        int numRows = b.getInt(), numCols = b.getInt(), i, j, k, numFigures = 0;
+        p.numCellFigures = b.getInt();
+        p.cells = new Diagram[numRows][numCols];
+        ArrayList<Diagram> missingCells = new ArrayList<Diagram>();
+        Diagram diag;
+        for (i = 0; i < numRows; i++) {
+            for (j = 0; j < numCols; j++) {
+                diag = readDiagram(b);
+                if (diag == null) {
+                    diag = new Diagram();   missingCells.add(diag);
+                } else {
+                    p.cells[i][j] = diag;
+                    for (k = 0; k < diag.figures.size(); k++) {
+                        diag.figures.get(k).setIndex(numFigures);   numFigures++;
+                    }
+                }
+                diag.row = i;   diag.col = j;
+            }
+        }
+        if (numFigures != p.numCellFigures) {
+            throw new RuntimeException("Corrupted binary corpus in problem \"" + p.id + "\"");
+        }
+        p.missingCells = missingCells.toArray(new Diagram[0]);
+        p.answers = new Diagram[b.getInt()];
+        for (i = 0; i < p.answers.length; i++) {
+            p.answers[i] = readDiagram(b);
+            p.answers[i].row = -1;   p.answers[i].col = i;
+        }
+        return p;
+    }
+
+    private Diagram readDiagram(ByteBuffer b) {
+        int numFigures = b.getInt();
+        if (numFigures == NULL_DIAGRAM) { return null; }
+        Diagram d = new Diagram();   Figure f;   int shape;
+        for (int i = 0; i < numFigures; i++) {
+            f = new Figure();   f.setId(i);   f.setDiagram(d);   d.figures.add(f);
+            shape = b.getInt();   f.setName(symbols.getName(shape), shape);
+            f.setPositionX(b.getInt());   f.setPositionY(b.getInt());
+            f.setScaleX(b.getFloat());   f.setScaleY(b.getFloat());
+            f.setRotation(b.getFloat());   f.setReflectX(b.get() != 0);
+        }
+        return d;
+    }
+
+    private static Solution readSolution(Problem p, ByteBuffer b) {
+        Solution s = new Solution(p);
+        if (b.getInt() != s.values.length) {
+            throw new RuntimeException("Corrupted binary corpus in problem \"" + p.id + "\"");
+        }
+        for (int i = 0; i < s.values.length; i++) { s.values[i] = b.getInt(); }
+        return s;
+    }
+
+    private static void putString(String str, DataOutputStream out) throws IOException {
+        byte[] bytes = str.getBytes(UTF8);
+        out.writeInt(bytes.length);   out.write(bytes);
+    }
+
+    private static String getString(ByteBuffer b) {
+        byte[] bytes = new byte[b.getInt()];   b.get(bytes);
+        return new String(bytes, UTF8);
+    }
+
+}
@@ -2,21 +2,28 @@ package basic;
 
 import java.util.Arrays;
 
+/**
+ * Set of covered figures. Each figure is either positive, negative, false
+ * positive, false negative or not covered, and each state is stored as a
+ * bitset (figure i is bit i%64 of word i/64), so that merges and coverage
+ * differences work on 64 figures at a time.
+ */
 public class CoveredFigures {
-    private boolean[] positive, negative, falsePositive, falseNegative;
+    private long[] positive, negative, falsePositive, falseNegative;
     private int nPositive, nNegative, nFalsePositive, nFalseNegative;
     private int nAbsolutePositive, nAbsoluteNegative;
     private int nAbsoluteFalsePositive, nAbsoluteFalseNegative, length;
 
     public CoveredFigures(int n) {
         if (n < 1) { throw new IllegalArgumentException(); }
-        length = n;   positive = new boolean[n];   negative = new boolean[n];
-        falsePositive = new boolean[n];   falseNegative = new boolean[n];   clear();
+        length = n;   int numWords = (n + 63) >>> 6;
+        positive = new long[numWords];   negative = new long[numWords];
+        falsePositive = new long[numWords];   falseNegative = new long[numWords];   clear();
     }
 
     public void clear() {
-        Arrays.fill(positive, false);   Arrays.fill(negative, false);
-        Arrays.fill(falsePositive, false);   Arrays.fill(falseNegative, false);
+        Arrays.fill(positive, 0L);   Arrays.fill(negative, 0L);
+        Arrays.fill(falsePositive, 0L);   Arrays.fill(falseNegative, 0L);
         nPositive = 0;   nNegative = 0;
         nFalsePositive = 0;   nFalseNegative = 0;
         nAbsolutePositive = 0;   nAbsoluteNegative = 0;
@@ -75,6 +82,27 @@ public class CoveredFigures {
         return nAbsoluteFalseNegative;
     }
 
+    /**
+     * Returns the index of the first positive figure at or after i, or -1 if
+     * there is none (as java.util.BitSet.nextSetBit does).
+     */
+    public int nextPositive(int i) {
+        return nextSetBit(positive, i);
+    }
+
+    public boolean isPositive(int i) {
+        if ( (i < 0) || (i >= length) ) { throw new IndexOutOfBoundsException("Index: " + i); }
+        return isSet(positive, i);
+    }
+
+    /**
+     * Returns the index of the first negative figure at or after i, or -1 if
+     * there is none.
+     */
+    public int nextNegative(int i) {
+        return nextSetBit(negative, i);
+    }
+
     public void addPositive(Diagram d) {
         for (int i = 0; i < d.figures.size(); i++) { addPositive(d.figures.get(i).getIndex()); }
     }
@@ -107,26 +135,47 @@ public class CoveredFigures {
         addFalseNegative(f.getIndex());
     }
 
+    /**
+     * Merges the figures covered by cf, with the same result as adding each of
+     * them one by one: positive overrides any other state, and negative, false
+     * positive and false negative only apply to figures that are not covered
+     * (false negative only to those that are not already errors).
+     */
     public void add(CoveredFigures cf) {
         if (cf.length() != length) {
             throw new IllegalArgumentException("Incompatible arrays");
         }
-        for (int i = 0; i < length; i++) {
-            if (cf.positive[i]) { addPositive(i); }
-            else if (cf.negative[i]) { addNegative(i); }
-            else if (cf.falsePositive[i]) { addFalsePositive(i); }
-            else if (cf.falseNegative[i]) { addFalseNegative(i); }
+        long p, n, fp, fn, cfP, cfN, cfFP, cfFN, uncovered;
+        nPositive = 0;   nNegative = 0;   nFalsePositive = 0;   nFalseNegative = 0;
+        for (int i = 0; i < positive.length; i++) {
+            p = positive[i];   n = negative[i];   fp = falsePositive[i];   fn = falseNegative[i];
+            cfP = cf.positive[i];   cfN = cf.negative[i];
+            cfFP = cf.falsePositive[i];   cfFN = cf.falseNegative[i];
+            uncovered = ~(p | n);
+            positive[i] = p | cfP;
+            negative[i] = (n & ~cfP) | (cfN & ~p);
+            falsePositive[i] = (fp & ~(cfP | cfN)) | (cfFP & uncovered);
+            falseNegative[i] = (fn & ~(cfP | cfN | cfFP)) | (cfFN & uncovered & ~fp);
+            nPositive += Long.bitCount(positive[i]);
+            nNegative += Long.bitCount(negative[i]);
+            nFalsePositive += Long.bitCount(falsePositive[i]);
+            nFalseNegative += Long.bitCount(falseNegative[i]);
         }
+        // each covered figure of cf is added once
+        nAbsolutePositive += cf.nPositive;   nAbsoluteNegative += cf.nNegative;
+        nAbsoluteFalsePositive += cf.nFalsePositive;
+        nAbsoluteFalseNegative += cf.nFalseNegative;
     }
 
     public void copy(CoveredFigures cf) {
         if (cf.length() != length) {
             throw new IllegalArgumentException("Incompatible arrays");
         }
-        System.arraycopy(cf.positive,0 , positive,0, length);
-        System.arraycopy(cf.negative,0 , negative,0, length);
-        System.arraycopy(cf.falsePositive,0 , falsePositive,0, length);
-        System.arraycopy(cf.falseNegative,0 , falseNegative,0, length);
+        int numWords = positive.length;
+        System.arraycopy(cf.positive,0 , positive,0, numWords);
+        System.arraycopy(cf.negative,0 , negative,0, numWords);
+        System.arraycopy(cf.falsePositive,0 , falsePositive,0, numWords);
+        System.arraycopy(cf.falseNegative,0 , falseNegative,0, numWords);
         nPositive = cf.nPositive;   nNegative = cf.nNegative;
         nFalsePositive = cf.nFalsePositive;   nFalseNegative = cf.nFalseNegative;
         nAbsolutePositive = cf.nAbsolutePositive;
@@ -136,48 +185,73 @@ public class CoveredFigures {
     }
 
     public int getAdditionalCoverage(CoveredFigures cf) {
-        int i, count = 0;
         if (cf.length() != length) {
             throw new IllegalArgumentException("Incompatible arrays");
         }
         if (cf.getCoverage() == 0) { return getCoverage(); }
-        for (i = 0; i < length; i++) {
-            if ( covers(i) && !cf.covers(i) ) { count++; }
+        int count = 0;
+        for (int i = 0; i < positive.length; i++) {
+            count += Long.bitCount( (positive[i] | negative[i])
+                    & ~(cf.positive[i] | cf.negative[i]) );
         }
         return count;
     }
 
     public int getAdditionalPositiveCoverage(CoveredFigures cf) {
-        int i, count = 0;
         if (cf.length() != length) {
             throw new IllegalArgumentException("Incompatible arrays");
         }
         if (cf.getPositiveCoverage() == 0) { return getPositiveCoverage(); }
-        for (i = 0; i < length; i++) {
-            if ( positive[i] && !cf.positive[i] ) { count++; }
+        int count = 0;
+        for (int i = 0; i < positive.length; i++) {
+            count += Long.bitCount(positive[i] & ~cf.positive[i]);
         }
         return count;
     }
 
     // private methods ---------------------------------------------------------
 
+    private int nextSetBit(long[] bits, int i) {
+        if (i < 0) { throw new IndexOutOfBoundsException("Negative index: " + i); }
+        if (i >= length) { return -1; }
+        int w = i >>> 6;   long word = bits[w] & (-1L << i);
+        while (word == 0) {
+            w++;
+            if (w == bits.length) { return -1; }
+            word = bits[w];
+        }
+        return (w << 6) + Long.numberOfTrailingZeros(word);
+    }
+
+    private boolean isSet(long[] bits, int i) {
+        return ( (bits[i >>> 6] & (1L << i)) != 0 );
+    }
+
+    private void set(long[] bits, int i) {
+        bits[i >>> 6] |= (1L << i);
+    }
+
+    private void unset(long[] bits, int i) {
+        bits[i >>> 6] &= ~(1L << i);
+    }
+
     private boolean covers(int i) {
         if (i < 0) { return false; }
-        return (positive[i] || negative[i]);
+        return ( isSet(positive, i) || isSet(negative, i) );
     }
 
     private boolean error(int i) {
         if (i < 0) { return false; }
-        return (falsePositive[i] || falseNegative[i]);
+        return ( isSet(falsePositive, i) || isSet(falseNegative, i) );
     }
 
     private void addPositive(int i) {
         if (i < 0) { return; }
-        if (!positive[i]) {
-            positive[i] = true;   nPositive++;
-            if (negative[i]) { negative[i] = false;   nNegative--; }
-            else if (falsePositive[i]) { falsePositive[i] = false;   nFalsePositive--; }
-            else if (falseNegative[i]) { falseNegative[i] = false;   nFalseNegative--; }
+        if (!isSet(positive, i)) {
+            set(positive, i);   nPositive++;
+            if (isSet(negative, i)) { unset(negative, i);   nNegative--; }
+            else if (isSet(falsePositive, i)) { unset(falsePositive, i);   nFalsePositive--; }
+            else if (isSet(falseNegative, i)) { unset(falseNegative, i);   nFalseNegative--; }
         }
         nAbsolutePositive++;
     }
@@ -185,24 +259,24 @@ public class CoveredFigures {
     private void addNegative(int i) {
         if (i < 0) { return; }
         if (!covers(i)) {
-            negative[i] = true;   nNegative++;
-            if (falsePositive[i]) { falsePositive[i] = false;   nFalsePositive--; }
-            else if (falseNegative[i]) { falseNegative[i] = false;   nFalseNegative--; }
+            set(negative, i);   nNegative++;
+            if (isSet(falsePositive, i)) { unset(falsePositive, i);   nFalsePositive--; }
+            else if (isSet(falseNegative, i)) { unset(falseNegative, i);   nFalseNegative--; }
         }
         nAbsoluteNegative++;
     }
 
     private void addFalsePositive(int i) {
-        if ( (i >= 0) && !covers(i) && !falsePositive[i] ) {
-            falsePositive[i] = true;   nFalsePositive++;
-            if (falseNegative[i]) { falseNegative[i] = false;   nFalseNegative--; }
+        if ( (i >= 0) && !covers(i) && !isSet(falsePositive, i) ) {
+            set(falsePositive, i);   nFalsePositive++;
+            if (isSet(falseNegative, i)) { unset(falseNegative, i);   nFalseNegative--; }
         }
         nAbsoluteFalsePositive++;
     }
 
     private void addFalseNegative(int i) {
         if ( (i >= 0) && !covers(i) && !error(i)) {
-            falseNegative[i] = true;   nFalseNegative++;
+            set(falseNegative, i);   nFalseNegative++;
         }
         nAbsoluteFalseNegative++;
     }
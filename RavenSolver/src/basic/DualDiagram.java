@@ -3,43 +3,69 @@ package basic;
 import java.util.ArrayList;
 import java.util.Arrays;
 
+/**
+ * A dual diagram can be reset and used again: the groups of figures are kept
+ * in a pool, so a DualDiagram that is reused allocates nothing once the pool
+ * is large enough.
+ * <p>
+ * Figures are matched with the groups by scanning the positive groups and then
+ * the negative groups, and taking the first one that is equal. When there are
+ * many groups (or many figures in the result), the candidates are taken from a
+ * FigureIndex instead, and the first one in the order of the scan is chosen,
+ * so the result is the same.
+ */
 public class DualDiagram {
-    // each diagram is used as a list of equal figures
-    private ArrayList<Diagram> positive, negative;
-    private boolean[] positiveUpdates;
+    private static final int MIN_INDEXED_FIGURES = 24;   // scan fewer figures linearly
+    // each group is a diagram used as a list of equal figures; positive and
+    // negative hold the numbers of the groups, in the order of the scan
+    private ArrayList<Diagram> groups;   // pool of groups
+    private int numGroups;   // groups in use
+    private int[] positive, negative;
+    private int numPositive, numNegative;
+    private boolean[] isPositive, positiveUpdates;   // for each group
+    private int[] negativeOrder;   // position of each negative group in negative
+    private FigureIndex groupIndex, resultIndex;
+    private boolean indexed;   // the groups are in groupIndex
+
+    public DualDiagram() {
+        groups = new ArrayList<Diagram>();   numGroups = 0;
+        positive = new int[8];   negative = new int[8];   numPositive = 0;   numNegative = 0;
+        isPositive = new boolean[8];   positiveUpdates = new boolean[8];
+        negativeOrder = new int[8];
+        groupIndex = new FigureIndex();   resultIndex = new FigureIndex();   indexed = false;
+    }
 
     public DualDiagram(Diagram d) {
-        positive = new ArrayList<Diagram>();
-        negative = new ArrayList<Diagram>();
+        this();   reset(d);
+    }
+
+    /**
+     * Discards the current contents, and initializes the dual diagram with the
+     * figures of d.
+     */
+    public void reset(Diagram d) {
+        numGroups = 0;   numPositive = 0;   numNegative = 0;
+        groupIndex.clear();   indexed = false;
         // initialize positive (grouping equal figures)
-        int i, j;   boolean added;   Figure f;   Diagram newDiag;
-        for (i = 0; i < d.figures.size(); i++) {
-            f = d.figures.get(i);   added = false;   j = 0;
-            while (!added && (j < positive.size())) {
-                if (positive.get(j).figures.get(0).equals(f)) {
-                    positive.get(j).figures.add(f);   added = true;
-                } else { j++; }
-            }
-            if (!added) {
-                newDiag = new Diagram();   newDiag.figures.add(f);
-                positive.add(newDiag);
-            }
+        int g;   Figure f;
+        for (int i = 0; i < d.figures.size(); i++) {
+            f = d.figures.get(i);   g = findGroup(f);
+            if (g >= 0) { groups.get(g).figures.add(f); }
+            else { g = newGroup(f);   isPositive[g] = true;   positive[numPositive++] = g; }
         }
-        // positive updates array (the positive list can only shrink, so this
-        // array will be sufficient for all future updates)
-        positiveUpdates = new boolean[positive.size()];
     }
 
     public void addPositive(Diagram d) {
-        Arrays.fill(positiveUpdates, false);   int i;
+        Arrays.fill(positiveUpdates, 0, numGroups, false);   int i, g;
         for (i = 0; i < d.figures.size(); i++) {
             addPositive(d.figures.get(i));
         }
-        // update positive (backwards, because indices are altered on removals)
-        for (i = positive.size()-1; i >= 0; i--) {
-            if (!positiveUpdates[i]) {
+        // update positive (backwards, because positions are altered on removals)
+        for (i = numPositive-1; i >= 0; i--) {
+            g = positive[i];
+            if (!positiveUpdates[g]) {
                 // turn negative
-                negative.add(positive.remove(i));
+                removePositive(i);   addToNegative(g);
             }
         }
     }
@@ -51,28 +77,25 @@ public class DualDiagram {
     }
 
     public void evaluate(Diagram result, CoveredFigures cf) {
-        int i, j;   Diagram d;   Figure f;   boolean covered;
+        int i;   Diagram d;   boolean covered;
+        boolean useIndex = (result.figures.size() >= MIN_INDEXED_FIGURES);
+        if (useIndex) {
+            resultIndex.clear();
+            for (i = 0; i < result.figures.size(); i++) { resultIndex.add(result.figures.get(i)); }
+        }
         // positive
-        for (i = 0; i < positive.size(); i++) {
-            d = positive.get(i);   f = d.figures.get(0);   covered = false;
+        for (i = 0; i < numPositive; i++) {
+            d = groups.get(positive[i]);
             // cover the result
-            for (j = 0; j < result.figures.size(); j++) {
-                if (result.figures.get(j).equals(f)) {
-                    cf.addPositive(result.figures.get(j));   covered = true;
-                }
-            }
+            covered = coverResult(result, d.figures.get(0), useIndex, true, cf);
             // cover the operands
             if (covered) { cf.addPositive(d); }
             else { cf.addFalsePositive(d); }
         }
         // negative
-        for (i = 0; i < negative.size(); i++) {
-            d = negative.get(i);   f = d.figures.get(0);   covered = true;
-            for (j = 0; j < result.figures.size(); j++) {
-                if (result.figures.get(j).equals(f)) {
-                    cf.addFalseNegative(result.figures.get(j));   covered = false;
-                }
-            }
+        for (i = 0; i < numNegative; i++) {
+            d = groups.get(negative[i]);
+            covered = !coverResult(result, d.figures.get(0), useIndex, false, cf);
             if (covered) { cf.addNegative(d); }
             else { cf.addFalseNegative(d); }
         }
@@ -81,39 +104,121 @@ public class DualDiagram {
     // private methods ---------------------------------------------------------
 
     private void addPositive(Figure f) {
-        int i;
-        // search positive
-        for (i = 0; i < positive.size(); i++) {
-            if (positive.get(i).figures.get(0).equals(f)) {
-                positive.get(i).figures.add(f);
-                positiveUpdates[i] = true;   return;
+        int g = findGroup(f);
+        if (g >= 0) {
+            groups.get(g).figures.add(f);
+            if (isPositive[g]) { positiveUpdates[g] = true; }
+        } else {
+            // new figure
+            addToNegative(newGroup(f));
+        }
+    }
+
+    private void addNegative(Figure f) {
+        int g = findGroup(f);
+        // if the figure was not already present in the dual diagram it is ignored
+        if (g < 0) { return; }
+        groups.get(g).figures.add(f);
+        if (isPositive[g]) {
+            // turn negative
+            int i = 0;
+            while (positive[i] != g) { i++; }
+            removePositive(i);   addToNegative(g);
+        }
+    }
+
+    /**
+     * Adds the figures of the result that are equal to f to cf (as positive or
+     * as false negative), and returns true if there is any.
+     */
+    private boolean coverResult(Diagram result, Figure f, boolean useIndex,
+    boolean asPositive, CoveredFigures cf) {
+        boolean found = false;   Figure r;   int i, j;
+        if (!useIndex) {
+            for (j = 0; j < result.figures.size(); j++) {
+                r = result.figures.get(j);
+                if (r.equals(f)) { found = true;   cover(r, asPositive, cf); }
             }
+            return found;
         }
-        // search negative
-        for (i = 0; i < negative.size(); i++) {
-            if (negative.get(i).figures.get(0).equals(f)) {
-                negative.get(i).figures.add(f);   return;
+        resultIndex.find(f);
+        for (i = 0; i < resultIndex.numChains(); i++) {
+            for (j = resultIndex.first(i); j >= 0; j = resultIndex.next(j)) {
+                r = resultIndex.get(j);
+                if (r.equals(f)) { found = true;   cover(r, asPositive, cf); }
             }
         }
-        // new figure
-        Diagram d = new Diagram();   d.figures.add(f);   negative.add(d);
+        return found;
     }
 
-    private void addNegative(Figure f) {
-        int i;
-        for (i = 0; i < positive.size(); i++) {
-            if (positive.get(i).figures.get(0).equals(f)) {
-                // turn negative
-                positive.get(i).figures.add(f);
-                negative.add(positive.remove(i));   return;
+    private static void cover(Figure r, boolean asPositive, CoveredFigures cf) {
+        if (asPositive) { cf.addPositive(r); } else { cf.addFalseNegative(r); }
+    }
+
+    /**
+     * Returns the first group (positive, and then negative) whose figures are
+     * equal to f, or -1 if there is none.
+     */
+    private int findGroup(Figure f) {
+        int i, g;
+        if (!indexed && (numGroups >= MIN_INDEXED_FIGURES)) {
+            for (g = 0; g < numGroups; g++) { groupIndex.add(groups.get(g).figures.get(0)); }
+            indexed = true;
+        }
+        if (!indexed) {
+            for (i = 0; i < numPositive; i++) {
+                if (groups.get(positive[i]).figures.get(0).equals(f)) { return positive[i]; }
+            }
+            for (i = 0; i < numNegative; i++) {
+                if (groups.get(negative[i]).figures.get(0).equals(f)) { return negative[i]; }
             }
+            return -1;
         }
-        for (i = 0; i < negative.size(); i++) {
-            if (negative.get(i).figures.get(0).equals(f)) {
-                negative.get(i).figures.add(f);   return;
+        // positive groups are in the order in which they were created, and
+        // negative groups in the order in which they became negative
+        int bestPositive = -1, bestNegative = -1;
+        groupIndex.find(f);
+        for (i = 0; i < groupIndex.numChains(); i++) {
+            for (g = groupIndex.first(i); g >= 0; g = groupIndex.next(g)) {
+                if (!groups.get(g).figures.get(0).equals(f)) { continue; }
+                if (isPositive[g]) {
+                    if ( (bestPositive < 0) || (g < bestPositive) ) { bestPositive = g; }
+                } else if ( (bestNegative < 0)
+                || (negativeOrder[g] < negativeOrder[bestNegative]) ) {
+                    bestNegative = g;
+                }
             }
         }
-        // if the figure was not already present in the dual diagram it is ignored
+        return (bestPositive >= 0) ? bestPositive : bestNegative;
+    }
+
+    private int newGroup(Figure f) {
+        Diagram d;
+        if (numGroups < groups.size()) {
+            d = groups.get(numGroups);   d.figures.clear();
+        } else {
+            d = new Diagram();   groups.add(d);
+        }
+        d.figures.add(f);
+        if (numGroups == isPositive.length) {
+            int n = 2*numGroups;
+            positive = Arrays.copyOf(positive, n);   negative = Arrays.copyOf(negative, n);
+            isPositive = Arrays.copyOf(isPositive, n);
+            positiveUpdates = Arrays.copyOf(positiveUpdates, n);
+            negativeOrder = Arrays.copyOf(negativeOrder, n);
+        }
+        isPositive[numGroups] = false;   positiveUpdates[numGroups] = false;
+        if (indexed) { groupIndex.add(f); }
+        return numGroups++;
+    }
+
+    private void removePositive(int i) {
+        isPositive[positive[i]] = false;   numPositive--;
+        System.arraycopy(positive,i+1, positive,i, numPositive-i);
+    }
+
+    private void addToNegative(int g) {
+        negativeOrder[g] = numNegative;   negative[numNegative++] = g;
     }
 
 }
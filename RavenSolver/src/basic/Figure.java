@@ -4,8 +4,9 @@ public class Figure implements Cloneable {
     public static final int POSITION_THRESHOLD = 5;
     public static final float SCALE_THRESHOLD = 0.01f;
     public static final int ROTATION_THRESHOLD = 10;
-    public static final int UNDEFINED_ID = -1;
-    private String name;
+    public static final int UNDEFINED_ID = -1, UNDEFINED_SHAPE = -1;
+    private String name;   // only used in reports, if the shape is defined
+    private int shape;   // id of the name in the SymbolTable of the corpus
     private int id, positionX, positionY;   // position of the center
     private float scaleX, scaleY, rotation;   // rotation is in [0,360)
     private boolean reflectX;
@@ -13,7 +14,7 @@ public class Figure implements Cloneable {
     private int index;
     
     public Figure() {
-        name = null;   id = UNDEFINED_ID;
+        name = null;   shape = UNDEFINED_SHAPE;   id = UNDEFINED_ID;
         positionX = 0;   positionY = 0;   scaleX = 1f;   scaleY = 1f;
         rotation = 0f;   reflectX = false;   diagram = null;   index = -1;
     }
@@ -26,7 +27,16 @@ public class Figure implements Cloneable {
     }
 
     public void setName(String name) {
-        this.name = name;
+        this.name = name;   shape = UNDEFINED_SHAPE;
+    }
+
+    /**
+     * Sets the name and its shape id, which must come from the SymbolTable
+     * shared by all the figures that will be compared with this one.
+     */
+    public void setName(String name, int shape) {
+        if (shape < 0) { throw new IllegalArgumentException("Invalid shape id: " + shape); }
+        this.name = name;   this.shape = shape;
     }
 
     public void setDiagram(Diagram d) {
@@ -73,6 +83,21 @@ public class Figure implements Cloneable {
         return name;
     }
 
+    public int getShape() {
+        return shape;
+    }
+
+    /**
+     * Returns true if both figures have the same name (comparing their shape
+     * ids, if both are defined).
+     */
+    public boolean sameShape(Figure f) {
+        if ( (shape != UNDEFINED_SHAPE) && (f.shape != UNDEFINED_SHAPE) ) {
+            return (shape == f.shape);
+        }
+        return name.equals(f.name);
+    }
+
     public Diagram getDiagram() {
         return diagram;
     }
@@ -105,6 +130,16 @@ public class Figure implements Cloneable {
         return reflectX;
     }
 
+    /**
+     * Copies all the attributes of f into this figure (like clone, but
+     * without allocating a new figure).
+     */
+    public void copy(Figure f) {
+        name = f.name;   shape = f.shape;   id = f.id;   positionX = f.positionX;   positionY = f.positionY;
+        scaleX = f.scaleX;   scaleY = f.scaleY;   rotation = f.rotation;
+        reflectX = f.reflectX;   diagram = f.diagram;   index = f.index;
+    }
+
     @Override
     public Object clone() {
         Object o;
@@ -120,7 +155,7 @@ public class Figure implements Cloneable {
         Figure f = (Figure) o;
         float rotationD = Math.abs(rotation-f.rotation);
         rotationD = Math.min(rotationD, 360-rotationD);
-        return ( name.equals(f.name)
+        return ( sameShape(f)
                 && (Math.abs(positionX-f.positionX) <= POSITION_THRESHOLD)
                 && (Math.abs(positionY-f.positionY) <= POSITION_THRESHOLD)
                 && (Math.abs(scaleX-f.scaleX) <= SCALE_THRESHOLD)
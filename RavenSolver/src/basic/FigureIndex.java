@@ -0,0 +1,112 @@
+package basic;
+
+/**
+ * Hash index of figures by name, reflectX and position, with the positions
+ * quantized into squares of POSITION_THRESHOLD+1 units: the figures that can be
+ * equal to a figure f are in the 3x3 squares around the square of f. The
+ * index only filters candidates, so they must still be compared with
+ * Figure.equals. The arrays are reused by clear(), so an index that is
+ * reused allocates nothing once they are large enough.
+ */
+class FigureIndex {
+    private static final int SQUARE = Figure.POSITION_THRESHOLD + 1;
+    private int[] head, next;   // chains of figure numbers, ended by -1
+    private Figure[] figures;
+    private int size, mask;
+    private int[] slots;   // distinct slots of the squares around a figure
+    private int numSlots;
+
+    public FigureIndex() {
+        head = new int[16];   next = new int[8];   figures = new Figure[8];
+        slots = new int[9];   clear();
+    }
+
+    public void clear() {
+        for (int i = 0; i < head.length; i++) { head[i] = -1; }
+        size = 0;   mask = head.length - 1;   numSlots = 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Adds f, which gets the number size()-1.
+     */
+    public void add(Figure f) {
+        if (size == figures.length) { grow(); }
+        figures[size] = f;   link(size);   size++;
+    }
+
+    public Figure get(int i) {
+        return figures[i];
+    }
+
+    /**
+     * Defines the chains that contain every figure that may be equal to f,
+     * which are then read with numChains(), first(chain) and next(i). A figure
+     * is found in one chain at most.
+     */
+    public void find(Figure f) {
+        int x = square(f.getPositionX()), y = square(f.getPositionY());
+        int i, j, k, slot;   boolean repeated;
+        numSlots = 0;
+        for (i = -1; i <= 1; i++) {
+            for (j = -1; j <= 1; j++) {
+                slot = slot(f, x+i, y+j);   repeated = false;
+                for (k = 0; k < numSlots; k++) {
+                    if (slots[k] == slot) { repeated = true; }
+                }
+                if (!repeated) { slots[numSlots] = slot;   numSlots++; }
+            }
+        }
+    }
+
+    public int numChains() {
+        return numSlots;
+    }
+
+    /**
+     * Returns the first figure number of a chain, or -1 if it is empty.
+     */
+    public int first(int chain) {
+        return head[slots[chain]];
+    }
+
+    public int next(int i) {
+        return next[i];
+    }
+
+    // private methods ---------------------------------------------------------
+
+    private void link(int i) {
+        Figure f = figures[i];
+        int slot = slot(f, square(f.getPositionX()), square(f.getPositionY()));
+        next[i] = head[slot];   head[slot] = i;
+    }
+
+    private void grow() {
+        Figure[] newFigures = new Figure[2*figures.length];
+        System.arraycopy(figures,0, newFigures,0, size);
+        figures = newFigures;   next = new int[figures.length];
+        head = new int[2*figures.length];   mask = head.length - 1;
+        for (int i = 0; i < head.length; i++) { head[i] = -1; }
+        for (int i = 0; i < size; i++) { link(i); }
+    }
+
+    private int slot(Figure f, int x, int y) {
+        // the name hash is used (not the shape id), so it is consistent with
+        // Figure.sameShape for any figure
+        int h = f.getName().hashCode();
+        h = 31*h + (f.getReflectX() ? 1 : 0);
+        h = 0x9E3779B1*h + x;   h = 0x9E3779B1*h + y;
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    private static int square(int p) {
+        // floor division
+        if (p >= 0) { return p / SQUARE; }
+        return -((SQUARE - 1 - p) / SQUARE);
+    }
+
+}
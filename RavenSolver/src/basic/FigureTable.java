@@ -0,0 +1,103 @@
+package basic;
+
+/**
+ * Attributes of the cell figures of a problem, stored in primitive arrays
+ * indexed by the global index of each figure (Figure.getIndex()). Missing
+ * cells, and diagrams that are not placed in the matrix, are not included.
+ * The table is a snapshot: it must be built again if the cells change.
+ * It is only read by the search of equalities between cell figures
+ * (EqualityFinder and KnownEqualities); transformations and coverage work
+ * on Diagram and Figure objects, since their operands are not indexed.
+ */
+public class FigureTable {
+    private int size;
+    private int[] row, col;   // cell of each figure
+    private int[] shape, positionX, positionY;
+    private float[] scaleX, scaleY, rotation;
+    private boolean[] reflectX;
+
+    public FigureTable(Problem p) {
+        size = p.numCellFigures;
+        row = new int[size];   col = new int[size];
+        shape = new int[size];   positionX = new int[size];   positionY = new int[size];
+        scaleX = new float[size];   scaleY = new float[size];   rotation = new float[size];
+        reflectX = new boolean[size];
+        // figures named without a shape id get one from a table of this problem
+        SymbolTable symbols = null;   int i, j, k;   Diagram d;   Figure f;
+        for (i = 0; i < p.cells.length; i++) {
+            for (j = 0; j < p.cells[i].length; j++) {
+                d = p.cells[i][j];
+                if (d == null) { continue; }
+                for (k = 0; k < d.figures.size(); k++) {
+                    f = d.figures.get(k);
+                    if ( (symbols == null) && (f.getShape() == Figure.UNDEFINED_SHAPE) ) {
+                        symbols = new SymbolTable();
+                    }
+                }
+            }
+        }
+        for (i = 0; i < p.cells.length; i++) {
+            for (j = 0; j < p.cells[i].length; j++) {
+                d = p.cells[i][j];
+                if (d == null) { continue; }
+                for (k = 0; k < d.figures.size(); k++) { set(d.figures.get(k), i, j, symbols); }
+            }
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int getRow(int i) {
+        return row[i];
+    }
+
+    public int getCol(int i) {
+        return col[i];
+    }
+
+    public int getShape(int i) {
+        return shape[i];
+    }
+
+    public int getPositionX(int i) {
+        return positionX[i];
+    }
+
+    public int getPositionY(int i) {
+        return positionY[i];
+    }
+
+    public float getScaleX(int i) {
+        return scaleX[i];
+    }
+
+    public float getScaleY(int i) {
+        return scaleY[i];
+    }
+
+    public float getRotation(int i) {
+        return rotation[i];
+    }
+
+    public boolean getReflectX(int i) {
+        return reflectX[i];
+    }
+
+    // private methods ---------------------------------------------------------
+
+    private void set(Figure f, int cellRow, int cellCol, SymbolTable symbols) {
+        int i = f.getIndex();
+        if ( (i < 0) || (i >= size) ) {
+            throw new IllegalArgumentException("Invalid figure index: " + i);
+        }
+        row[i] = cellRow;   col[i] = cellCol;
+        if (symbols == null) { shape[i] = f.getShape(); }
+        else { shape[i] = symbols.intern(f.getName()); }
+        positionX[i] = f.getPositionX();   positionY[i] = f.getPositionY();
+        scaleX[i] = f.getScaleX();   scaleY[i] = f.getScaleY();
+        rotation[i] = f.getRotation();   reflectX[i] = f.getReflectX();
+    }
+
+}
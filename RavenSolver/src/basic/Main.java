@@ -4,67 +4,159 @@ import answer.PostAnswerSelector;
 import java.io.BufferedWriter;
 import java.io.FileWriter;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 public class Main {
+    private static int numThreads = Runtime.getRuntime().availableProcessors();
+    private static int parallelism = 0;   // of the shared pool (0 to split the processors)
+    private static int maxLevel = 3;
+    private static int[] beamWidths = new int[0];   // for each level (0 for no limit)
+    private static int margin = -1;   // of the iterative deepening (< 0 if it is not used)
+    private static boolean pruning = false;
+    private static int screenSize = 0;   // of the pre-screening (0 if it is not used)
+
+    /**
+     * Usage: Main [-threads n] [-parallelism p] [-levels m] [-beam level width]...
+     * [-margin k] [-prune] [-screen s] [problemFile],
+     * where problemFile (problems.txt by default) can be either a text file or
+     * a binary corpus, n is the number of problems that are solved at the same
+     * time (the number of available processors by default), p is the number of
+     * workers shared by the parallel parts of those problems (by default the
+     * available processors divided by n, so both together do not use more
+     * threads than processors), m is the last
+     * level that is solved (3 by default), and each -beam option limits the
+     * rules of a level (3 or more) generated from each expanded rule to the
+     * width best ones (no limit by default), and -margin enables the iterative
+     * deepening, in which a level only evaluates again the candidate solutions
+     * whose cost was at most k above the best one, and a solution that is not
+     * tied is kept in the next levels, and -prune stops the evaluation of the
+     * candidate solutions that can neither win nor tie, and -screen only
+     * evaluates the s candidate solutions ranked first by a PreAnswerSelector
+     * (and those tied with them) (see PostAnswerSelector); or
+     * Main -convert textFile binaryFile, to create a binary corpus.
+     */
     public static void main(String[] args) {
         try {
-            ArrayList<Problem> problems = new ArrayList<Problem>();
-            ArrayList<Solution> solutions = new ArrayList<Solution>();
-            Parser.parse("problems.txt", problems, solutions);
-            solve(problems, solutions);
+            if ( (args.length == 3) && args[0].equals("-convert") ) {
+                int n = BinaryCorpus.convert(args[1], args[2]);
+                System.out.println(n + " RPM problems converted");   return;
+            }
+            String fileName = "problems.txt";   int i = 0;
+            while (i < args.length) {
+                if (args[i].equals("-threads") && (i+1 < args.length)) {
+                    numThreads = Integer.parseInt(args[i+1]);   i += 2;
+                } else if (args[i].equals("-parallelism") && (i+1 < args.length)) {
+                    parallelism = Integer.parseInt(args[i+1]);   i += 2;
+                    if (parallelism < 1) { throw new IllegalArgumentException("Invalid parallelism"); }
+                } else if (args[i].equals("-levels") && (i+1 < args.length)) {
+                    maxLevel = Integer.parseInt(args[i+1]);   i += 2;
+                } else if (args[i].equals("-beam") && (i+2 < args.length)) {
+                    setBeamWidth(Integer.parseInt(args[i+1]), Integer.parseInt(args[i+2]));
+                    i += 3;
+                } else if (args[i].equals("-margin") && (i+1 < args.length)) {
+                    margin = Integer.parseInt(args[i+1]);   i += 2;
+                    if (margin < 0) { throw new IllegalArgumentException("Invalid margin"); }
+                } else if (args[i].equals("-prune")) {
+                    pruning = true;   i++;
+                } else if (args[i].equals("-screen") && (i+1 < args.length)) {
+                    screenSize = Integer.parseInt(args[i+1]);   i += 2;
+                    if (screenSize < 1) { throw new IllegalArgumentException("Invalid screen size"); }
+                } else { fileName = args[i];   i++; }
+            }
+            if (numThreads < 1) { throw new IllegalArgumentException("Invalid number of threads"); }
+            if (maxLevel < 2) { throw new IllegalArgumentException("Invalid number of levels"); }
+            // while a problem waits for the pool, the other n-1 may be running,
+            // so n-1 + processors/n threads never exceed the processors
+            if (parallelism == 0) {
+                parallelism = Math.max(1, Runtime.getRuntime().availableProcessors() / numThreads);
+            }
+            Parallel.setParallelism(parallelism);
+            ProblemReader reader;
+            if (BinaryCorpus.isBinary(fileName)) { reader = new BinaryCorpus(fileName); }
+            else { reader = new Parser(fileName); }
+            try { solve(reader); } finally { reader.close(); }
         } catch (Exception e) { e.printStackTrace(); }
     }
 
     // private methods ---------------------------------------------------------
 
-    private static void solve(ArrayList<Problem> problems,
-    ArrayList<Solution> solutions) throws Exception {
-        boolean[] correctD2 = new boolean[problems.size()];
-        boolean[] correctD3 = new boolean[problems.size()];
-        boolean[] correctD4 = new boolean[problems.size()];
-        StringBuilder report = new StringBuilder();
-        report.append(problems.size()).append(" RPM problems parsed\n\n\n");
-        PostAnswerSelector aSel;   int i;
-        for (i = 0; i < problems.size(); i++) {
-            report.append("----------------------------------------------------------------------\n");
-            report.append("Solving problem ").append(problems.get(i).id).append("\n\n");
-            System.out.println("Solving problem " + problems.get(i).id);
-            aSel = new PostAnswerSelector(problems.get(i));
-            System.out.println("\tLevel 2");   aSel.solveNextLevel();   report.append(aSel);
-            correctD2[i] = aSel.isCorrect(solutions.get(i));
-            report.append( (correctD2[i] ? "Correct\n\n" : "Incorrect\n\n") );
-            System.out.println("\tLevel 3");   aSel.solveNextLevel();   report.append(aSel);
-            correctD3[i] = aSel.isCorrect(solutions.get(i));
-            report.append( (correctD3[i] ? "Correct\n\n" : "Incorrect\n\n") );
-            /*System.out.println("\tLevel 4");   aSel.solveNextLevel();   report.append(aSel);
-            correctD4[i] = aSel.isCorrect(solutions.get(i));
-            report.append( (correctD4[i] ? "Correct\n\n" : "Incorrect\n\n") );*/
-            report.append("\n");
+    private static void solve(ProblemReader reader) throws Exception {
+        // problems are solved as soon as they are parsed, numThreads at a time;
+        // when all threads are busy and the queue is full, the reading thread
+        // solves the next problem itself, so parsing does not run ahead
+        ExecutorService executor = new ThreadPoolExecutor(numThreads, numThreads,
+                0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(numThreads),
+                new ThreadPoolExecutor.CallerRunsPolicy());
+        ArrayList<Future<ProblemTask>> tasks = new ArrayList<Future<ProblemTask>>();
+        Exception parseError = null;   // the problems read before it are still reported
+        try {
+            while (reader.next()) {
+                tasks.add( executor.submit(
+                        new ProblemTask(reader.getProblem(), reader.getSolution())) );
+            }
+        } catch (Exception e) {
+            parseError = e;
+        } finally { executor.shutdown(); }
+        // collect the results in input order
+        int i, j, numProblems = tasks.size();
+        boolean[][] correctD = new boolean[maxLevel+1][numProblems];   // [level][problem]
+        boolean[] screenedOut = new boolean[numProblems];
+        StringBuilder report = new StringBuilder();   ProblemTask task;
+        report.append(numProblems).append(" RPM problems parsed\n\n\n");
+        for (i = 0; i < numProblems; i++) {
+            task = tasks.get(i).get();   report.append(task.report);
+            for (j = 2; j <= maxLevel; j++) { correctD[j][i] = task.correctD[j]; }
+            screenedOut[i] = task.screenedOut;
         }
         // report success rate
         report.append("----------------------------------------------------------------------\n");
-        int correct2 = 0, correct3 = 0, correctAny = 0, correctAll = 0;
-        for (i = 0; i < problems.size(); i++) {
-            if (correctD2[i]) { correct2++; }
-            if (correctD3[i]) { correct3++; }
-            //if (correctD4[i]) { correct4++; }
-            if (correctD2[i] || correctD3[i]) { correctAny++; }
-            if (correctD2[i] && correctD3[i]) { correctAll++; }
+        int[] correct = new int[maxLevel+1];
+        int correctAny = 0, correctAll = 0;   boolean any, all;
+        for (i = 0; i < numProblems; i++) {
+            any = false;   all = true;
+            for (j = 2; j <= maxLevel; j++) {
+                if (correctD[j][i]) { correct[j]++;   any = true; } else { all = false; }
+            }
+            if (any) { correctAny++; }
+            if (all) { correctAll++; }
+        }
+        float pct;
+        for (j = 2; j <= maxLevel; j++) {
+            pct = 100f * correct[j] / numProblems;
+            report.append("Correct in level " + j + ": " + correct[j] + " (" + pct + "%)\n");
+            appendBooleanArray(correctD[j], report);   report.append("\n");
         }
-        float pct = 100f * correct2 / problems.size();
-        report.append("Correct in level 2: " + correct2 + " (" + pct + "%)\n");
-        appendBooleanArray(correctD2, report);   report.append("\n");
-        pct = 100f * correct3 / problems.size();
-        report.append("Correct in level 3: " + correct3 + " (" + pct + "%)\n");
-        appendBooleanArray(correctD3, report);   report.append("\n");
-        /*pct = 100f * correct4 / problems.size();
-        report.append("Correct in level 4: " + correct4 + " (" + pct + "%)\n");
-        appendBooleanArray(correctD4, report);   report.append("\n");*/
-        pct = 100f * correctAny / problems.size();
+        pct = 100f * correctAny / numProblems;
         report.append("Correct in any: " + correctAny + " (" + pct + "%)\n");
-        pct = 100f * correctAll / problems.size();
+        pct = 100f * correctAll / numProblems;
         report.append("Correct in all: " + correctAll + " (" + pct + "%)\n");
+        if (screenSize > 0) {
+            int screened = 0;
+            for (i = 0; i < numProblems; i++) { if (screenedOut[i]) { screened++; } }
+            pct = 100f * screened / numProblems;
+            report.append("Correct solution screened out: " + screened + " (" + pct + "%)\n");
+            appendBooleanArray(screenedOut, report);   report.append("\n");
+        }
+        if (parseError != null) {
+            report.append("Parsing stopped after problem " + numProblems + ": "
+                    + parseError.getMessage() + "\n");
+        }
         save(report.toString(), "out.txt");
+        if (parseError != null) { throw parseError; }
+    }
+
+    private static void setBeamWidth(int level, int width) {
+        if ( (level < 3) || (width < 0) ) {
+            throw new IllegalArgumentException("Invalid beam width");
+        }
+        if (level >= beamWidths.length) { beamWidths = Arrays.copyOf(beamWidths, level+1); }
+        beamWidths[level] = width;
     }
 
     private static void appendBooleanArray(boolean[] array, StringBuilder sb) {
@@ -80,4 +172,45 @@ public class Main {
         out.write(str);   out.close();
     }
 
+    // private classes ---------------------------------------------------------
+
+    /**
+     * Solves a single problem, so that several problems can be solved at the
+     * same time. Each task works on its own problem, so they share no state.
+     */
+    private static class ProblemTask implements Callable<ProblemTask> {
+        private Problem problem;
+        private Solution solution;
+        private StringBuilder report;
+        private boolean[] correctD;   // for each level
+        private boolean screenedOut;
+
+        public ProblemTask(Problem p, Solution s) {
+            problem = p;   solution = s;   report = new StringBuilder();
+            correctD = new boolean[maxLevel+1];
+        }
+
+        public ProblemTask call() {
+            report.append("----------------------------------------------------------------------\n");
+            report.append("Solving problem ").append(problem.id).append("\n\n");
+            System.out.println("Solving problem " + problem.id);
+            PostAnswerSelector aSel = new PostAnswerSelector(problem);
+            aSel.setDeepeningMargin(margin);   aSel.setPruning(pruning);
+            aSel.setPreScreening(screenSize);
+            for (int i = 3; i < beamWidths.length; i++) {
+                if (beamWidths[i] > 0) { aSel.setBeamWidth(i, beamWidths[i]); }
+            }
+            for (int level = 2; level <= maxLevel; level++) {
+                System.out.println("\tLevel " + level + " (" + problem.id + ")");
+                aSel.solveNextLevel();   report.append(aSel);
+                correctD[level] = aSel.isCorrect(solution);
+                report.append( (correctD[level] ? "Correct\n\n" : "Incorrect\n\n") );
+            }
+            screenedOut = aSel.isScreenedOut(solution);
+            report.append("\n");
+            problem = null;   solution = null;   // release the problem
+            return this;
+        }
+    }
+
 }
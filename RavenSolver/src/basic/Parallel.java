@@ -0,0 +1,87 @@
+package basic;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Shared fork/join pool for the parallel parts of the solver. A task that is
+ * invoked from a worker of the pool is run in that same pool, so nested
+ * parallel sections share the workers instead of blocking each other.
+ */
+public class Parallel {
+
+    /**
+     * Body of a parallel loop, which processes the indices in [start,end).
+     * Several ranges may run at the same time, so each one must only write
+     * its own results.
+     */
+    public interface Body {
+        public void run(int start, int end);
+    }
+
+    private static ForkJoinPool pool = null;
+    private static volatile int parallelism = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Sets the number of workers of the pool (1 disables parallel execution).
+     * Must be called before the pool is used for the first time.
+     */
+    public static synchronized void setParallelism(int n) {
+        if (n < 1) { throw new IllegalArgumentException("Invalid parallelism: " + n); }
+        if (pool != null) { throw new IllegalStateException("The pool is already running"); }
+        parallelism = n;
+    }
+
+    public static int getParallelism() {
+        return parallelism;
+    }
+
+    public static boolean isEnabled() {
+        return (getParallelism() > 1);
+    }
+
+    public static <T> T invoke(ForkJoinTask<T> task) {
+        if (ForkJoinTask.inForkJoinPool()) { return task.invoke(); }
+        return getPool().invoke(task);
+    }
+
+    /**
+     * Runs body on [start,end), splitting the range in halves until the
+     * ranges have at most grain indices. If the pool is disabled or the
+     * range is not larger than grain, body runs on the whole range in the
+     * calling thread.
+     */
+    public static void forRange(int start, int end, int grain, Body body) {
+        if ( !isEnabled() || (end - start <= grain) ) { body.run(start, end);   return; }
+        invoke(new RangeTask(start, end, grain, body));
+    }
+
+    // private methods ---------------------------------------------------------
+
+    private static synchronized ForkJoinPool getPool() {
+        if (pool == null) { pool = new ForkJoinPool(parallelism); }
+        return pool;
+    }
+
+    // private classes ---------------------------------------------------------
+
+    private static class RangeTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private int start, end, grain;
+        private Body body;
+
+        public RangeTask(int start, int end, int grain, Body body) {
+            this.start = start;   this.end = end;   this.grain = grain;   this.body = body;
+        }
+
+        @Override
+        protected void compute() {
+            if (end - start <= grain) { body.run(start, end);   return; }
+            int middle = (start + end) / 2;
+            invokeAll(new RangeTask(start, middle, grain, body),
+                    new RangeTask(middle, end, grain, body));
+        }
+    }
+
+}
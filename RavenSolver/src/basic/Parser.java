@@ -2,59 +2,125 @@ package basic;
 
 import java.io.BufferedReader;
 import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
 import java.util.ArrayList;
+import java.util.HashSet;
+
+/**
+ * Single-pass streaming parser for problem files. The input is tokenized
+ * character by character, and each call to next() reads exactly one problem
+ * (and its solution), so the solver can start working on the first problems
+ * while the rest of the file has not been read yet.
+ * It accepts the same files as the original parser, which deleted the spaces
+ * and line breaks of the whole file and then searched for the keywords: spaces
+ * and line breaks are skipped even inside a token ("a b" is read as "ab"),
+ * tabs are kept inside the tokens, a keyword may be preceded by other text,
+ * the attributes of a figure are read as a list of values with any brackets
+ * removed, and the closing parentheses of the matrix, the answers and the
+ * problem are optional. The parity/ directory checks this against the
+ * original parser.
+ */
+public class Parser implements ProblemReader {
+    private static final int EOF = -1, WORD = -2;
+    private BufferedReader in;
+    private HashSet<String> ids;
+    private SymbolTable symbols;   // figure names
+    private Problem problem;
+    private Solution solution;
+    private int ch, type;   // lookahead character and type of the current token
+    private StringBuilder word;   // text of the current token, if it is a WORD
+    private String section, eofSection;   // messages of the syntax errors in the current section
+
+    public Parser(String fileName) throws IOException {
+        this(new FileReader(fileName));
+    }
+
+    public Parser(Reader reader) throws IOException {
+        in = new BufferedReader(reader);   ids = new HashSet<String>();
+        symbols = new SymbolTable();
+        problem = null;   solution = null;   word = new StringBuilder();
+        section = null;   eofSection = null;
+        ch = in.read();   type = EOF;
+    }
 
-public class Parser {
     public static void parse(String fileName, ArrayList<Problem> problems,
     ArrayList<Solution> solutions) throws Exception {
-        // read file
-        BufferedReader in = new BufferedReader(new FileReader(fileName));
-        StringBuilder sb = new StringBuilder();
-        String line = in.readLine();
-        while (line != null) { sb.append(line.replaceAll(" ",""));   line = in.readLine(); }
-        // parse problems
-        int start = sb.indexOf("problem("), end;   Problem p;
-        while (start != -1) {
-            end = sb.indexOf("problem(", start+1);
-            if (end == -1) { end = sb.length(); }
-            parseProblem(sb.substring(start, end), problems, solutions);
-            if (end < sb.length()) { start = end; } else { start = -1; }
-        }
-        // close
+        Parser parser = new Parser(fileName);
+        try {
+            while (parser.next()) {
+                problems.add(parser.getProblem());   solutions.add(parser.getSolution());
+            }
+        } finally { parser.close(); }
+    }
+
+    /**
+     * Reads the next problem of the file. Returns false if there are no more
+     * problems, in which case getProblem() and getSolution() return null.
+     */
+    public boolean next() throws IOException {
+        problem = null;   solution = null;
+        // skip anything until "problem("
+        nextToken();
+        while (type != EOF) {
+            if (isWord("problem")) {
+                nextToken();
+                if (type == '(') { parseProblem();   return true; }
+            } else { nextToken(); }
+        }
+        return false;
+    }
+
+    public Problem getProblem() {
+        return problem;
+    }
+
+    public Solution getSolution() {
+        return solution;
+    }
+
+    /**
+     * Returns the figure names read so far (the shape ids of the figures).
+     */
+    public SymbolTable getSymbols() {
+        return symbols;
+    }
+
+    public void close() throws IOException {
         in.close();
     }
 
     // private methods ---------------------------------------------------------
 
-    private static void parseProblem(String str, ArrayList<Problem> problems,
-    ArrayList<Solution> solutions) {
-        Problem problem = new Problem();
+    private void parseProblem() throws IOException {
+        problem = new Problem();
         // parse id
-        int start = str.indexOf("problem("), end = str.indexOf(",",start);
-        if ((start == -1) || (end == -1)) {
-            throw new RuntimeException("Missing problem id");
-        }
-        problem.id = str.substring(start+8,end).trim();
-        if (containsId(problems, problem.id)) {
+        nextToken();
+        if (type == WORD) { problem.id = word.toString().trim();   nextToken(); }
+        else { problem.id = ""; }
+        if (type != ',') { throw new RuntimeException("Missing problem id"); }
+        if (!ids.add(problem.id)) {
             throw new RuntimeException("Duplicated problem id: " + problem.id);
         }
         // parse the number of rows
-        start = str.indexOf("matrix(", end);
-        end = str.indexOf(",", start+7);
-        if ((start == -1) || (end == -1)) {
+        nextToken();
+        if (!isWord("matrix")) {
             throw new RuntimeException("Missing numRows parameter in problem \"" + problem.id + "\"");
         }
-        int numRows = Integer.parseInt(str.substring(start+7,end));
+        nextToken();
+        String rows = (type == '(') ? readUntil(',') : null;
+        if (rows == null) {
+            throw new RuntimeException("Missing numRows parameter in problem \"" + problem.id + "\"");
+        }
+        int numRows = Integer.parseInt(rows);
         if (numRows < 1) {
             throw new RuntimeException("Invalid numRows parameter in problem \"" + problem.id + "\"");
         }
-        // parse matrix
-        end = str.indexOf("answers(", end);
-        if (end == -1) {
-            throw new RuntimeException("Missing answers in problem \"" + problem.id + "\"");
-        }
+        // parse matrix (the original parser looked for the answers first)
         ArrayList<Diagram> diags = new ArrayList<Diagram>();
-        parseDiagrams(str.substring(start,end), diags);
+        section = "Invalid number of diagrams";   eofSection = "Missing answers";
+        nextToken();   parseDiagrams(diags);   nextToken();
+        if (type == ')') { nextToken(); }
         if ( (diags.isEmpty()) || (diags.size() % numRows != 0) ) {
             throw new RuntimeException("Invalid number of diagrams in problem \"" + problem.id + "\"");
         }
@@ -83,12 +149,12 @@ public class Parser {
         problem.numCellFigures = numFigures;
         problem.missingCells = missingCells.toArray(new Diagram[0]);
         // parse answers
-        start = end;   end = str.indexOf("solution(", end);
-        if (end == -1) {
-            throw new RuntimeException("Missing solution in problem \"" + problem.id + "\"");
-        }
-        diags.clear();
-        parseDiagrams(str.substring(start,end), diags);
+        if (type == ',') { nextToken(); }
+        section = "Missing answers";   eofSection = "Missing solution";
+        if (!isWord("answers")) { syntaxError(); }
+        nextToken();   expect('(');   nextToken();
+        diags.clear();   parseDiagrams(diags);   nextToken();
+        if (type == ')') { nextToken(); }
         if (diags.isEmpty()) {
             throw new RuntimeException("Missing answers in problem \"" + problem.id + "\"");
         }
@@ -100,90 +166,90 @@ public class Parser {
             problem.answers[i] = diags.get(i);
             problem.answers[i].row = -1;   problem.answers[i].col = i;
         }
-        problems.add(problem);
         // parse solution
-        start = str.indexOf("[", end+8);   end = str.indexOf("]", end+8);
-        if ( (start == -1) || (end == -1) || (start > end) ) {
+        if (type == ',') { nextToken(); }
+        boolean found = isWord("solution");
+        if (found) { nextToken(); }
+        if (!found || (type != '(')) {
+            throw new RuntimeException("Missing solution in problem \"" + problem.id + "\"");
+        }
+        String prefix = readUntil('['), text = (prefix == null) ? null : readUntil(']');
+        if ( (text == null) || (prefix.indexOf(']') != -1) ) {
             throw new RuntimeException("Invalid solution in problem \"" + problem.id + "\"");
         }
-        String[] values = str.substring(start+1, end).split(",");
+        String[] values = text.split(",");
         if (values.length != problem.missingCells.length) {
             throw new RuntimeException("Invalid solution in problem \"" + problem.id + "\"");
         }
-        Solution correct = new Solution(problem);
+        solution = new Solution(problem);
         for (i = 0; i < values.length; i++) {
-            correct.values[i] = Integer.parseInt(values[i]);
+            solution.values[i] = Integer.parseInt(values[i]);
         }
-        solutions.add(correct);
     }
 
-    private static boolean containsId(ArrayList<Problem> problems, String id) {
-        for (int i = 0; i < problems.size(); i++) {
-            if (problems.get(i).id.equals(id)) { return true; }
-        }
-        return false;
-    }
-    
-    private static void parseDiagrams(String str, ArrayList<Diagram> diagrams) {
-        int start = str.indexOf("diagram("), end;
-        while (start != -1) {
-            end = str.indexOf("diagram(", start+8);
-            if (end == -1) { end = str.length(); }
-            diagrams.add( parseDiagram(str.substring(start, end)) );
-            if (end < str.length()) { start = end; } else { start = -1; }
+    /**
+     * Parses "[diagram(...), ..., diagram(...)]", starting at the current
+     * token and ending at the closing bracket.
+     */
+    private void parseDiagrams(ArrayList<Diagram> diagrams) throws IOException {
+        expect('[');   nextToken();
+        while (type != ']') {
+            diagrams.add(parseDiagram());   nextToken();
+            if (type == ',') { nextToken(); }
         }
     }
 
-    private static Diagram parseDiagram(String str) {
-        if (str.indexOf("diagram([null])") != -1) { return null; }   // null diagram
+    private Diagram parseDiagram() throws IOException {
+        if (!isWord("diagram")) { syntaxError(); }
+        nextToken();   expect('(');   nextToken();   expect('[');   nextToken();
+        if (isWord("null")) {   // null diagram
+            nextToken();   expect(']');   nextToken();   expect(')');   return null;
+        }
         Diagram diagram = new Diagram();
-        int start = str.indexOf("figure("), end;
-        while (start != -1) {
-            end = str.indexOf("figure(", start+1);
-            if (end == -1) { end = str.length(); }
-            parseFigure(str.substring(start, end), diagram);
-            if (end < str.length()) { start = end; } else { start = -1; }
+        while (type != ']') {
+            parseFigure(diagram);   nextToken();
+            if (type == ',') { nextToken(); }
         }
+        nextToken();   expect(')');
         return diagram;
     }
 
-    private static void parseFigure(String str, Diagram diagram) {
+    private void parseFigure(Diagram diagram) throws IOException {
+        if (!isWord("figure")) {
+            if (type == EOF) { syntaxError(); }
+            throw new RuntimeException("Invalid figure");
+        }
         Figure figure = new Figure();
         figure.setId(diagram.figures.size());
         figure.setDiagram(diagram);   diagram.figures.add(figure);
-        // separate attributes
-        int start = str.indexOf("figure(")+7, end = str.indexOf(")",start);
-        if ((start == -1) || (end == -1)) {
-            throw new RuntimeException("Invalid figure");
-        }
-        StringBuilder sb = new StringBuilder(str.substring(start, end));
-        int i = 0;   char ch;
-        while (i < sb.length()) {
-            ch = sb.charAt(i);
-            if ( (ch == '[') || (ch == ']') || (ch == ' ') ) { sb.deleteCharAt(i); }
-            else { i++; }
-        }
-        String[] atts = sb.toString().split(",");   i = 0;
+        nextToken();
+        if (type != '(') { throw new RuntimeException("Invalid figure"); }
+        // separate attributes (the text until ')', without brackets)
+        String text = readUntil(')');
+        if (text == null) { syntaxError(); }
+        String[] atts = text.replace("[", "").replace("]", "").split(",");
         // parse attributes
         boolean dName = false, dPosition = false, dScale = false;
         boolean dRotation = false, dReflectX = false;
+        int i = 0, sep, shape;
         try { while (i < atts.length) {
             if (atts[i].equals("name")) {
                 if (dName) { throw new Exception(); }
-                figure.setName(atts[i+1]);   i += 2;   dName = true;
+                shape = symbols.intern(atts[i+1]);
+                figure.setName(symbols.getName(shape), shape);   i += 2;   dName = true;
             } else if (atts[i].equals("position")) {
                 if (dPosition) { throw new Exception(); }
-                start = atts[i+1].indexOf(":");
-                if (start == -1) { throw new Exception(); }
-                figure.setPositionX(Integer.parseInt( atts[i+1].substring(0,start) ));
-                figure.setPositionY(Integer.parseInt( atts[i+1].substring(start+1) ));
+                sep = atts[i+1].indexOf(':');
+                if (sep == -1) { throw new Exception(); }
+                figure.setPositionX(Integer.parseInt( atts[i+1].substring(0,sep) ));
+                figure.setPositionY(Integer.parseInt( atts[i+1].substring(sep+1) ));
                 i += 2;   dPosition = true;
             } else if (atts[i].equals("scale")) {
                 if (dScale) { throw new Exception(); }
-                start = atts[i+1].indexOf(":");
-                if (start == -1) { throw new Exception(); }
-                figure.setScaleX(Float.parseFloat( atts[i+1].substring(0,start) ));
-                figure.setScaleY(Float.parseFloat( atts[i+1].substring(start+1) ));
+                sep = atts[i+1].indexOf(':');
+                if (sep == -1) { throw new Exception(); }
+                figure.setScaleX(Float.parseFloat( atts[i+1].substring(0,sep) ));
+                figure.setScaleY(Float.parseFloat( atts[i+1].substring(sep+1) ));
                 i += 2;   dScale = true;
             } else if (atts[i].equals("rotate")) {
                 if (dRotation) { throw new Exception(); }
@@ -203,5 +269,76 @@ public class Parser {
             throw new RuntimeException("Undefined name in figure " + figure);
         }
     }
-    
+
+    private void expect(int t) {
+        if (type != t) { syntaxError(); }
+    }
+
+    private void syntaxError() {
+        throw new RuntimeException( ((type == EOF) ? eofSection : section)
+                + " in problem \"" + problem.id + "\"");
+    }
+
+    /**
+     * Returns true if the current token ends with the keyword str (the original
+     * parser searched for the keywords anywhere in the text).
+     */
+    private boolean isWord(String str) {
+        int offset = word.length() - str.length();
+        if ( (type != WORD) || (offset < 0) ) { return false; }
+        for (int i = 0; i < str.length(); i++) {
+            if (word.charAt(offset + i) != str.charAt(i)) { return false; }
+        }
+        return true;
+    }
+
+    // lexer -------------------------------------------------------------------
+
+    private void nextToken() throws IOException {
+        do {   // words made only of tabs (indentation) are not tokens
+            while ( (ch != -1) && isSkipped(ch) ) { ch = in.read(); }
+            if (ch == -1) { type = EOF;   return; }
+            if (isDelimiter(ch)) { type = ch;   ch = in.read();   return; }
+            type = WORD;   word.setLength(0);
+            while ( (ch != -1) && !isDelimiter(ch) ) {
+                if (!isSkipped(ch)) { word.append((char) ch); }
+                ch = in.read();
+            }
+        } while (isBlank(word));
+    }
+
+    /**
+     * Reads the text until the character c, which becomes the current token.
+     * Returns null if the file ends before c.
+     */
+    private String readUntil(int c) throws IOException {
+        word.setLength(0);
+        while ( (ch != -1) && (ch != c) ) {
+            if (!isSkipped(ch)) { word.append((char) ch); }
+            ch = in.read();
+        }
+        if (ch == -1) { type = EOF;   return null; }
+        ch = in.read();   type = c;   return word.toString();
+    }
+
+    private static boolean isBlank(StringBuilder sb) {
+        for (int i = 0; i < sb.length(); i++) {
+            if (sb.charAt(i) > ' ') { return false; }
+        }
+        return true;
+    }
+
+    /**
+     * Returns true for the characters deleted by the original parser (spaces
+     * and line breaks), which do not separate tokens.
+     */
+    private static boolean isSkipped(int c) {
+        return ( (c == ' ') || (c == '\n') || (c == '\r') );
+    }
+
+    private static boolean isDelimiter(int c) {
+        return ( (c == '(') || (c == ')') || (c == '[') || (c == ']')
+                || (c == ',') || (c == ':') );
+    }
+
 }
@@ -11,6 +11,24 @@ public class Problem {
         answers = null;   numCellFigures = 0;
     }
 
+    /**
+     * Creates a view of a problem in which the missing cells are filled with
+     * the given diagrams, whose row and col must be those of a missing cell and
+     * whose figure indices must follow those of the base problem. The view
+     * has no missing cells and shares every diagram with the base problem,
+     * which is not modified.
+     */
+    public Problem(Problem base, Diagram[] filledCells) {
+        id = base.id;   answers = base.answers;   missingCells = null;
+        numCellFigures = base.numCellFigures;
+        cells = new Diagram[base.cells.length][];   int i;
+        for (i = 0; i < cells.length; i++) { cells[i] = base.cells[i].clone(); }
+        for (i = 0; i < filledCells.length; i++) {
+            cells[filledCells[i].row][filledCells[i].col] = filledCells[i];
+            numCellFigures += filledCells[i].figures.size();
+        }
+    }
+
     @Override
     public String toString() {
         StringBuilder sb = new StringBuilder();
@@ -0,0 +1,21 @@
+package basic;
+
+import java.io.IOException;
+
+/**
+ * Sequential source of problems and their solutions.
+ */
+public interface ProblemReader {
+
+    /**
+     * Reads the next problem. Returns false if there are no more problems.
+     */
+    public boolean next() throws IOException;
+
+    public Problem getProblem();
+
+    public Solution getSolution();
+
+    public void close() throws IOException;
+
+}
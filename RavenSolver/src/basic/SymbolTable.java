@@ -0,0 +1,37 @@
+package basic;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Interns the figure names of a corpus, giving each distinct name a shape id
+ * (0, 1, 2, ...), so that figures can compare their shapes as ints.
+ */
+public class SymbolTable {
+    private HashMap<String,Integer> ids;
+    private ArrayList<String> names;
+
+    public SymbolTable() {
+        ids = new HashMap<String,Integer>();   names = new ArrayList<String>();
+    }
+
+    /**
+     * Returns the shape id of name, adding it to the table if necessary.
+     */
+    public int intern(String name) {
+        Integer id = ids.get(name);
+        if (id == null) {
+            id = names.size();   ids.put(name, id);   names.add(name);
+        }
+        return id;
+    }
+
+    public String getName(int id) {
+        return names.get(id);
+    }
+
+    public int size() {
+        return names.size();
+    }
+
+}
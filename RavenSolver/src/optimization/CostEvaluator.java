@@ -0,0 +1,190 @@
+package optimization;
+
+import basic.CoveredFigures;
+import rule.Rule;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Incremental version of Utils.cost for a set of rules that changes one rule
+ * at a time. It keeps how many rules of the set cover each figure (and each
+ * result cell) and the running totals of the cost components, so the cost of
+ * adding or removing a rule is computed in time proportional to the figures
+ * covered by that rule. The cost of a set is the same as Utils.cost.
+ */
+public class CostEvaluator {
+    private int numCellFigures, size;
+    private int[] positiveCount, coverCount;   // rules that cover each figure
+    private int[][] resultCount;   // rules with each result cell
+    private int positiveCoverage, coverage, results;
+    private int absPositives, operands, parameters, absNegatives;
+    private int falsePositives, falseNegatives, absFalsePositives, absFalseNegatives;
+
+    public CostEvaluator(int numCellFigures) {
+        if (numCellFigures < 1) { throw new IllegalArgumentException(); }
+        this.numCellFigures = numCellFigures;
+        positiveCount = new int[numCellFigures];   coverCount = new int[numCellFigures];
+        resultCount = new int[0][0];   clear();
+    }
+
+    public CostEvaluator(ArrayList<Rule> S, int numCellFigures) {
+        this(numCellFigures);
+        for (int i = 0; i < S.size(); i++) { add(S.get(i)); }
+    }
+
+    public void clear() {
+        Arrays.fill(positiveCount, 0);   Arrays.fill(coverCount, 0);
+        for (int i = 0; i < resultCount.length; i++) { Arrays.fill(resultCount[i], 0); }
+        size = 0;   positiveCoverage = 0;   coverage = 0;   results = 0;
+        absPositives = 0;   operands = 0;   parameters = 0;   absNegatives = 0;
+        falsePositives = 0;   falseNegatives = 0;
+        absFalsePositives = 0;   absFalseNegatives = 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns the cost of the current set (Integer.MAX_VALUE if it is empty).
+     */
+    public int cost() {
+        if (size == 0) { return Integer.MAX_VALUE; }
+        return cost(positiveCoverage, coverage, results, absPositives, operands,
+                parameters, absNegatives, falsePositives, falseNegatives,
+                absFalsePositives, absFalseNegatives);
+    }
+
+    /**
+     * Returns the cost that the set would have if r were added to it (the set
+     * is not modified).
+     */
+    public int costWith(Rule r) {
+        CoveredFigures cf = r.coveredFigures;   checkLength(cf);
+        int i, newPositives = 0, newCovered = 0;
+        for (i = cf.nextPositive(0); i >= 0; i = cf.nextPositive(i+1)) {
+            if (positiveCount[i] == 0) { newPositives++; }
+            if (coverCount[i] == 0) { newCovered++; }
+        }
+        for (i = cf.nextNegative(0); i >= 0; i = cf.nextNegative(i+1)) {
+            if (coverCount[i] == 0) { newCovered++; }
+        }
+        int newResults = (getResultCount(r) <= 0) ? 1 : 0;
+        return cost(positiveCoverage + newPositives, coverage + newCovered,
+                results + newResults, absPositives + cf.getPositiveCoverage(),
+                operands + r.numOperands(), parameters + r.numParameters(),
+                absNegatives + cf.getAbsoluteNegativeCoverage(),
+                falsePositives + cf.getFalsePositives(),
+                falseNegatives + cf.getFalseNegatives(),
+                absFalsePositives + cf.getAbsoluteFalsePositives(),
+                absFalseNegatives + cf.getAbsoluteFalseNegatives());
+    }
+
+    /**
+     * Returns the cost that the set would have if r (which must belong to the
+     * set) were removed from it (the set is not modified).
+     */
+    public int costWithout(Rule r) {
+        if (size == 1) { return Integer.MAX_VALUE; }
+        CoveredFigures cf = r.coveredFigures;   checkLength(cf);
+        int i, lostPositives = 0, lostCovered = 0;
+        for (i = cf.nextPositive(0); i >= 0; i = cf.nextPositive(i+1)) {
+            if (positiveCount[i] == 1) { lostPositives++; }
+            if (coverCount[i] == 1) { lostCovered++; }
+        }
+        for (i = cf.nextNegative(0); i >= 0; i = cf.nextNegative(i+1)) {
+            if (coverCount[i] == 1) { lostCovered++; }
+        }
+        int lostResults = (getResultCount(r) == 1) ? 1 : 0;
+        return cost(positiveCoverage - lostPositives, coverage - lostCovered,
+                results - lostResults, absPositives - cf.getPositiveCoverage(),
+                operands - r.numOperands(), parameters - r.numParameters(),
+                absNegatives - cf.getAbsoluteNegativeCoverage(),
+                falsePositives - cf.getFalsePositives(),
+                falseNegatives - cf.getFalseNegatives(),
+                absFalsePositives - cf.getAbsoluteFalsePositives(),
+                absFalseNegatives - cf.getAbsoluteFalseNegatives());
+    }
+
+    public void add(Rule r) {
+        update(r, 1);
+    }
+
+    /**
+     * Removes r, which must belong to the set.
+     */
+    public void remove(Rule r) {
+        update(r, -1);
+    }
+
+    // private methods ---------------------------------------------------------
+
+    private void update(Rule r, int inc) {
+        CoveredFigures cf = r.coveredFigures;   checkLength(cf);   int i;
+        if (getResultCount(r) == -1) { growResults(r.row+1, r.col+1); }
+        if (inc > 0) {
+            for (i = cf.nextPositive(0); i >= 0; i = cf.nextPositive(i+1)) {
+                if (positiveCount[i]++ == 0) { positiveCoverage++; }
+                if (coverCount[i]++ == 0) { coverage++; }
+            }
+            for (i = cf.nextNegative(0); i >= 0; i = cf.nextNegative(i+1)) {
+                if (coverCount[i]++ == 0) { coverage++; }
+            }
+            if (resultCount[r.row][r.col]++ == 0) { results++; }
+        } else {
+            for (i = cf.nextPositive(0); i >= 0; i = cf.nextPositive(i+1)) {
+                if (--positiveCount[i] == 0) { positiveCoverage--; }
+                if (--coverCount[i] == 0) { coverage--; }
+            }
+            for (i = cf.nextNegative(0); i >= 0; i = cf.nextNegative(i+1)) {
+                if (--coverCount[i] == 0) { coverage--; }
+            }
+            if (--resultCount[r.row][r.col] == 0) { results--; }
+        }
+        size += inc;
+        absPositives += inc * cf.getPositiveCoverage();
+        operands += inc * r.numOperands();   parameters += inc * r.numParameters();
+        absNegatives += inc * cf.getAbsoluteNegativeCoverage();
+        falsePositives += inc * cf.getFalsePositives();
+        falseNegatives += inc * cf.getFalseNegatives();
+        absFalsePositives += inc * cf.getAbsoluteFalsePositives();
+        absFalseNegatives += inc * cf.getAbsoluteFalseNegatives();
+    }
+
+    /**
+     * Returns how many rules of the set have the same result cell as r, or -1
+     * if that cell is out of the bounds of resultCount.
+     */
+    private int getResultCount(Rule r) {
+        if ( (r.row >= resultCount.length) || (r.col >= resultCount[r.row].length) ) {
+            return -1;
+        }
+        return resultCount[r.row][r.col];
+    }
+
+    private void growResults(int numRows, int numCols) {
+        numRows = Math.max(numRows, resultCount.length);
+        if (resultCount.length > 0) { numCols = Math.max(numCols, resultCount[0].length); }
+        int[][] counts = new int[numRows][numCols];
+        for (int i = 0; i < resultCount.length; i++) {
+            System.arraycopy(resultCount[i],0, counts[i],0, resultCount[i].length);
+        }
+        resultCount = counts;
+    }
+
+    private void checkLength(CoveredFigures cf) {
+        if (cf.length() != numCellFigures) {
+            throw new IllegalArgumentException("Incompatible arrays");
+        }
+    }
+
+    private int cost(int positiveCoverage, int coverage, int results, int absPositives,
+    int operands, int parameters, int absNegatives, int falsePositives,
+    int falseNegatives, int absFalsePositives, int absFalseNegatives) {
+        return Utils.costFunction(absPositives - positiveCoverage,
+                numCellFigures - coverage, numCellFigures - positiveCoverage, results,
+                operands, parameters, absNegatives, falsePositives, falseNegatives,
+                absFalsePositives, absFalseNegatives);
+    }
+
+}
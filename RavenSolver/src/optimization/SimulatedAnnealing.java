@@ -29,19 +29,24 @@ public class SimulatedAnnealing {
         }
         ArrayList<Rule> bestS = new ArrayList<Rule>(), nextS = new ArrayList<Rule>();
         Utils.getInitialState(S, availableRules, maxRules, rand);
-        cost = Utils.cost(S, numCellFigures);
+        CostEvaluator evaluator = new CostEvaluator(S, numCellFigures);   Rule r;
+        cost = evaluator.cost();
         bestS.addAll(S);   bestCost = cost;   iter = 0;
         worstCost = cost;   maxSize = S.size();
         // simulated annealing
         while ( (bestCost > 0) && (iter < maxIter) ) {
             Utils.getRandomNeighbor(S, nextS, availableRules, maxRules, availableIndices, rand);
-            nextCost = Utils.cost(nextS, numCellFigures);
+            // the neighbor has one more or one less rule than S
+            r = changedRule(S, nextS);
+            if (nextS.size() > S.size()) { nextCost = evaluator.costWith(r); }
+            else { nextCost = evaluator.costWithout(r); }
             if (nextCost < bestCost) {
                 bestCost = nextCost;   bestS.clear();   bestS.addAll(nextS);
             } else if (nextCost > worstCost) { worstCost = nextCost; }
             if (nextS.size() > maxSize) { maxSize = nextS.size(); }
             // accept or reject the neighbor
             if (accept(cost, nextCost, T, rand)) {
+                if (nextS.size() > S.size()) { evaluator.add(r); } else { evaluator.remove(r); }
                 cost = nextCost;   S.clear();   S.addAll(nextS);
             }
             iter++;   iterTemp++;
@@ -52,6 +57,18 @@ public class SimulatedAnnealing {
 
     // private methods ---------------------------------------------------------
 
+    /**
+     * Returns the rule that was added to S1 or removed from S1 to obtain S2.
+     */
+    private static Rule changedRule(ArrayList<Rule> S1, ArrayList<Rule> S2) {
+        ArrayList<Rule> larger = S1, smaller = S2;
+        if (S2.size() > S1.size()) { larger = S2;   smaller = S1; }
+        for (int i = 0; i < smaller.size(); i++) {
+            if (larger.get(i) != smaller.get(i)) { return larger.get(i); }
+        }
+        return larger.get(larger.size()-1);
+    }
+
     private static boolean accept(int cost, int nextCost, float T, Random rand) {
         if (nextCost <= cost) { return true; }
         float x = (float) Math.exp( (cost-nextCost) / T );
@@ -1,12 +1,17 @@
 package optimization;
 
 import basic.CoveredFigures;
+import basic.Parallel;
 import rule.Rule;
 import java.awt.Point;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Random;
 
 public class Utils {
+    // moves scanned by each task: a move is priced in about 0.5us and a fork/join
+    // round trip costs about 15-20us, so a chunk of 64 moves is about twice that
+    private static final int MIN_PARALLEL_MOVES = 64;
 
     public static int cost(ArrayList<Rule> S, int numCellFigures) {
         return cost(S, numCellFigures, null);
@@ -49,6 +54,43 @@ public class Utils {
                 falsePositives, falseNegatives, absFalsePositives, absFalseNegatives);
     }
 
+    /**
+     * Returns a lower bound of the cost of any nonempty subset of rules. The
+     * figures that no rule covers are leftovers of every subset, and the other
+     * terms of the cost that are added up for the rules of a subset (operands,
+     * parameters and errors) are shared out among the positive figures of each
+     * rule: every positive figure of the rules is then either covered by a rule
+     * of the subset, which pays at least the lowest share of the figure, or a
+     * positive leftover.
+     */
+    public static int costLowerBound(ArrayList<Rule> rules, int numCellFigures) {
+        if (numCellFigures < 1) { throw new IllegalArgumentException(); }
+        if (rules.isEmpty()) { return Integer.MAX_VALUE; }
+        CoveredFigures cf = new CoveredFigures(numCellFigures), rcf;
+        int i, f, positives, weight, minWeight = Integer.MAX_VALUE;
+        int positiveLeftover = costFunction(0,0,1,0,0,0,0,0,0,0,0);
+        double[] share = new double[numCellFigures];
+        Arrays.fill(share, positiveLeftover);
+        for (i = 0; i < rules.size(); i++) {
+            rcf = rules.get(i).coveredFigures;   cf.add(rcf);
+            weight = costFunction(0, 0, 0, 0, rules.get(i).numOperands(),
+                    rules.get(i).numParameters(), rcf.getAbsoluteNegativeCoverage(),
+                    rcf.getFalsePositives(), rcf.getFalseNegatives(),
+                    rcf.getAbsoluteFalsePositives(), rcf.getAbsoluteFalseNegatives());
+            minWeight = Math.min(minWeight, weight);
+            positives = rcf.getPositiveCoverage();
+            for (f = rcf.nextPositive(0); f >= 0; f = rcf.nextPositive(f+1)) {
+                share[f] = Math.min(share[f], weight / (double) positives);
+            }
+        }
+        double shares = 0;
+        for (f = cf.nextPositive(0); f >= 0; f = cf.nextPositive(f+1)) { shares += share[f]; }
+        // the cost is an integer (the margin absorbs rounding errors of the shares)
+        int rulesBound = Math.max(minWeight, (int) Math.ceil(shares - 0.000001));
+        return costFunction(0, numCellFigures - cf.getCoverage(),
+                numCellFigures - cf.getPositiveCoverage(), 1, 0,0,0,0,0,0,0) + rulesBound;
+    }
+
     public static int maxCost(int maxRules, int numCellFigures, int numRows, int numCols) {
         if ( (maxRules < 1) || (numCellFigures < 1) || (numRows < 1) || (numCols < 1) ) {
             throw new IllegalArgumentException();
@@ -68,57 +110,27 @@ public class Utils {
     public static int goToBestNeighbor(ArrayList<Rule> S, ArrayList<Rule> availableRules,
     int numCellFigures) {
         if (numCellFigures < 1) { throw new IllegalArgumentException(); }
-        ArrayList<Rule> nextS = new ArrayList<Rule>(S.size()+1);
-        int move, index, cost, bestCost = cost(S, numCellFigures), bestMove = -1;
-        nextS.clear();   nextS.addAll(S);   Rule r;
-        for (move = 0; move < availableRules.size(); move++) {
-            // move
-            r = availableRules.get(move);   index = r.indexIn(nextS);
-            if (index == -1) { nextS.add(r); } else { nextS.remove(index); }
-            // evaluate
-            if (!nextS.isEmpty()) {
-                cost = cost(nextS, numCellFigures);
-                if (cost < bestCost) { bestCost = cost;   bestMove = move; }
-            }
-            // restore nextS
-            if (index == -1) { nextS.remove(nextS.size()-1); } else { nextS.add(r); }
-        }
-        if (bestMove == -1) { return -1; }
+        // each move adds or removes one rule, so it is priced incrementally
+        CostEvaluator evaluator = new CostEvaluator(S, numCellFigures);
+        int[] best = findBestMove(S, availableRules, evaluator, null, 0, evaluator.cost());
+        if (best[1] == -1) { return -1; }
         // perform best move
-        r = availableRules.get(bestMove);   index = r.indexIn(S);
+        Rule r = availableRules.get(best[1]);   int index = r.indexIn(S);
         if (index == -1) { S.add(r); } else { S.remove(index); }
-        return bestCost;
+        return best[0];
     }
 
     public static int goToBestNeighbor(ArrayList<Rule> S, ArrayList<Rule> availableRules,
     int numCellFigures, TabuList tabuList, int aspiration) {
         if (numCellFigures < 1) { throw new IllegalArgumentException(); }
-        ArrayList<Rule> nextS = new ArrayList<Rule>(S.size()+1);
-        int move, index, cost, bestCost = Integer.MAX_VALUE, bestMove = -1;
-        nextS.clear();   nextS.addAll(S);   Rule r;
-        for (move = 0; move < availableRules.size(); move++) {
-            // move
-            r = availableRules.get(move);   index = r.indexIn(nextS);
-            if (index == -1) { nextS.add(r); } else { nextS.remove(index); }
-            // evaluate
-            if (!nextS.isEmpty()) {
-                cost = cost(nextS, numCellFigures);
-                if (tabuList.contains(move)) {
-                    if ( (cost < aspiration) && (cost < bestCost) ) {
-                        bestCost = cost;   bestMove = move;
-                    }
-                } else if (cost < bestCost) {
-                    bestCost = cost;   bestMove = move;
-                }
-            }
-            // restore nextS
-            if (index == -1) { nextS.remove(nextS.size()-1); } else { nextS.add(r); }
-        }
-        if (bestMove == -1) { return -1; }
+        CostEvaluator evaluator = new CostEvaluator(S, numCellFigures);
+        int[] best = findBestMove(S, availableRules, evaluator, tabuList, aspiration,
+                Integer.MAX_VALUE);
+        if (best[1] == -1) { return -1; }
         // perform best move
-        r = availableRules.get(bestMove);   index = r.indexIn(S);
+        Rule r = availableRules.get(best[1]);   int index = r.indexIn(S);
         if (index == -1) { S.add(r); } else { S.remove(index); }
-        tabuList.add(bestMove);   return bestCost;
+        tabuList.add(best[1]);   return best[0];
     }
 
     public static void getInitialState(ArrayList<Rule> S, ArrayList<Rule> availableRules,
@@ -163,9 +175,69 @@ public class Utils {
         for (i = 0; i < S1.size(); i++) { if (i != index) { S2.add(S1.get(i)); } }
     }
 
+    // package methods ---------------------------------------------------------
+
+    /**
+     * Returns {cost, move} for the move (adding or removing availableRules[move])
+     * with the lowest cost below bound, or {bound, -1} if there is none. Tabu
+     * moves (if tabuList is not null) are only accepted below the aspiration
+     * cost. Ties are broken by the lowest move, so the result is the same
+     * whether the moves are scanned serially or in parallel.
+     */
+    static int[] findBestMove(final ArrayList<Rule> S, final ArrayList<Rule> availableRules,
+    final CostEvaluator evaluator, final TabuList tabuList, final int aspiration,
+    final int bound) {
+        int numMoves = availableRules.size();
+        // the descents from a greedy selection (at most MAX_RULES moves) stay serial
+        if ( (numMoves < 2*MIN_PARALLEL_MOVES) || !Parallel.isEnabled() ) {
+            return scanMoves(S, availableRules, evaluator, tabuList, aspiration, bound,
+                    0, numMoves);
+        }
+        // the best move of each chunk, combined in order
+        final int[][] chunks = new int[(numMoves + MIN_PARALLEL_MOVES-1) / MIN_PARALLEL_MOVES][];
+        Parallel.forRange(0, chunks.length, 1, new Parallel.Body() {
+            public void run(int start, int end) {
+                for (int i = start; i < end; i++) {
+                    chunks[i] = scanMoves(S, availableRules, evaluator, tabuList, aspiration,
+                            bound, i*MIN_PARALLEL_MOVES,
+                            Math.min((i+1)*MIN_PARALLEL_MOVES, availableRules.size()));
+                }
+            }
+        });
+        int[] best = chunks[0];
+        for (int i = 1; i < chunks.length; i++) {
+            // on equal costs, the lowest move (in a previous chunk) is kept
+            if ( (chunks[i][1] != -1) && ((best[1] == -1) || (chunks[i][0] < best[0])) ) {
+                best = chunks[i];
+            }
+        }
+        return best;
+    }
+
     // private methods ---------------------------------------------------------
 
-    private static int costFunction(int positiveOverlap, int leftovers,
+    private static int[] scanMoves(ArrayList<Rule> S, ArrayList<Rule> availableRules,
+    CostEvaluator evaluator, TabuList tabuList, int aspiration, int bound,
+    int start, int end) {
+        int move, cost, bestCost = bound, bestMove = -1;   Rule r;
+        for (move = start; move < end; move++) {
+            // the evaluator is only read, so moves can be priced concurrently
+            r = availableRules.get(move);
+            if (r.indexIn(S) == -1) { cost = evaluator.costWith(r); }
+            else if (S.size() > 1) { cost = evaluator.costWithout(r); }
+            else { continue; }   // the empty set is not evaluated
+            if ( (tabuList != null) && tabuList.contains(move) ) {
+                if ( (cost < aspiration) && (cost < bestCost) ) {
+                    bestCost = cost;   bestMove = move;
+                }
+            } else if (cost < bestCost) {
+                bestCost = cost;   bestMove = move;
+            }
+        }
+        return new int[] {bestCost, bestMove};
+    }
+
+    static int costFunction(int positiveOverlap, int leftovers,
     int positiveLeftovers, int irregularity, int operands, int parameters, int absNegatives,
     int falsePositives, int falseNegatives, int absFalsePositives, int absFalseNegatives) {
         if ( (positiveOverlap < 0) || (leftovers < 0) || (positiveLeftovers < 0)
@@ -0,0 +1,53 @@
+package rule;
+
+import basic.CoveredFigures;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Inverted index from the cell figures of a problem to the rules that cover
+ * them positively. The rules are identified by their positions in the list
+ * that is indexed, and the rules of each figure are kept in increasing order.
+ */
+class CoverageIndex {
+    private int[][] rules;   // positions of the rules that cover each figure
+    private int[] size;
+    private int numRules;
+
+    public CoverageIndex(int numFigures) {
+        rules = new int[numFigures][];   size = new int[numFigures];   numRules = 0;
+        for (int i = 0; i < numFigures; i++) { rules[i] = new int[4]; }
+    }
+
+    public void clear() {
+        Arrays.fill(size, 0);   numRules = 0;
+    }
+
+    /**
+     * Indexes the rules of list from the position numRules() on (the previous
+     * ones must be the rules already indexed).
+     */
+    public void update(ArrayList<Rule> list) {
+        CoveredFigures cf;   int f;
+        for (; numRules < list.size(); numRules++) {
+            cf = list.get(numRules).coveredFigures;
+            for (f = cf.nextPositive(0); f >= 0; f = cf.nextPositive(f+1)) {
+                if (size[f] == rules[f].length) { rules[f] = Arrays.copyOf(rules[f], 2*size[f]); }
+                rules[f][size[f]++] = numRules;
+            }
+        }
+    }
+
+    public int numRules() {
+        return numRules;
+    }
+
+    public int size(int figure) {
+        return size[figure];
+    }
+
+    public int get(int figure, int k) {
+        return rules[figure][k];
+    }
+
+}
@@ -0,0 +1,193 @@
+package rule;
+
+import basic.Diagram;
+import basic.Figure;
+import basic.FigureTable;
+import basic.Parallel;
+import basic.Problem;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+
+/**
+ * Finds the equalities between the figures of different cells of a problem.
+ * Only figures with the same shape can be equal, so the figures are grouped by
+ * shape and each group is searched separately (in parallel, if it is enabled
+ * and there are enough pairs of figures). The equalities are returned in the
+ * order in which the cells and figures used to be compared: by the cells of
+ * fig1 and fig2 (in row-major order), and then by the positions of fig1 and
+ * fig2 in their cells.
+ * <p>
+ * The equalities between known figures (the first ones, which belong to the
+ * known cells of a problem) can be found separately, and then merged with
+ * those of the other figures, so they can be shared by every candidate
+ * solution of a problem (see KnownEqualities).
+ */
+class EqualityFinder {
+    private static final int MIN_PARALLEL_PAIRS = 4096;
+    private static final int ALL = 0, KNOWN = 1, NOT_KNOWN = 2;   // pairs to search
+    static final Comparator<Equality> ORDER = new Comparator<Equality>() {
+        public int compare(Equality e1, Equality e2) {
+            if (e1.cell1 != e2.cell1) { return (e1.cell1 < e2.cell1) ? -1 : 1; }
+            if (e1.cell2 != e2.cell2) { return (e1.cell2 < e2.cell2) ? -1 : 1; }
+            if (e1.i1 != e2.i1) { return (e1.i1 < e2.i1) ? -1 : 1; }
+            if (e1.i2 != e2.i2) { return (e1.i2 < e2.i2) ? -1 : 1; }
+            return 0;
+        }
+    };
+    private Problem problem;
+    private FigureTable table;
+    private ArrayList<int[]> groups;   // indices of the figures of each shape
+    private int mode, numKnownFigures;
+
+    public EqualityFinder(Problem p, FigureTable t) {
+        problem = p;   table = t;
+        // group the figures by shape (each group is sorted by index)
+        HashMap<Integer,ArrayList<Integer>> shapes = new HashMap<Integer,ArrayList<Integer>>();
+        ArrayList<ArrayList<Integer>> lists = new ArrayList<ArrayList<Integer>>();
+        ArrayList<Integer> list;   int i, j;
+        for (i = 0; i < table.size(); i++) {
+            list = shapes.get(table.getShape(i));
+            if (list == null) {
+                list = new ArrayList<Integer>();
+                shapes.put(table.getShape(i), list);   lists.add(list);
+            }
+            list.add(i);
+        }
+        groups = new ArrayList<int[]>();   int[] group;
+        for (i = 0; i < lists.size(); i++) {
+            list = lists.get(i);
+            if (list.size() < 2) { continue; }
+            group = new int[list.size()];
+            for (j = 0; j < group.length; j++) { group[j] = list.get(j); }
+            groups.add(group);
+        }
+    }
+
+    public ArrayList<Equality> find() {
+        return find(ALL, 0);
+    }
+
+    /**
+     * Returns only the equalities between the figures with indices lower than
+     * numKnownFigures.
+     */
+    public ArrayList<Equality> findKnown(int numKnownFigures) {
+        return find(KNOWN, numKnownFigures);
+    }
+
+    /**
+     * Returns the equalities, taking those between the figures with indices
+     * lower than numKnownFigures from known (returned by findKnown).
+     */
+    public ArrayList<Equality> find(ArrayList<Equality> known, int numKnownFigures) {
+        ArrayList<Equality> other = find(NOT_KNOWN, numKnownFigures);
+        ArrayList<Equality> equalities = new ArrayList<Equality>(known.size() + other.size());
+        int i = 0, j = 0;
+        while ( (i < known.size()) && (j < other.size()) ) {
+            if (ORDER.compare(known.get(i), other.get(j)) < 0) { equalities.add(known.get(i++)); }
+            else { equalities.add(other.get(j++)); }
+        }
+        while (i < known.size()) { equalities.add(known.get(i++)); }
+        while (j < other.size()) { equalities.add(other.get(j++)); }
+        return equalities;
+    }
+
+    // private methods ---------------------------------------------------------
+
+    private ArrayList<Equality> find(int mode, int numKnownFigures) {
+        this.mode = mode;   this.numKnownFigures = numKnownFigures;
+        final ArrayList<ArrayList<Equality>> results = new ArrayList<ArrayList<Equality>>();
+        long pairs = 0;   int i;
+        for (i = 0; i < groups.size(); i++) {
+            results.add(new ArrayList<Equality>());
+            pairs += (long) groups.get(i).length * (groups.get(i).length-1) / 2;
+        }
+        Parallel.Body body = new Parallel.Body() {
+            public void run(int start, int end) {
+                for (int i = start; i < end; i++) { find(groups.get(i), results.get(i)); }
+            }
+        };
+        if (pairs >= MIN_PARALLEL_PAIRS) { Parallel.forRange(0, groups.size(), 1, body); }
+        else { body.run(0, groups.size()); }
+        ArrayList<Equality> equalities = new ArrayList<Equality>();
+        for (i = 0; i < results.size(); i++) { equalities.addAll(results.get(i)); }
+        Collections.sort(equalities, ORDER);
+        return equalities;
+    }
+
+    private void find(int[] group, ArrayList<Equality> equalities) {
+        int numCols = problem.cells[0].length;
+        int i, j, i1, i2, cell1, cell2;
+        for (i = 0; i < group.length-1; i++) {
+            i1 = group[i];   cell1 = table.getRow(i1)*numCols + table.getCol(i1);
+            // the group is sorted, so i1 < i2
+            if ( (mode == KNOWN) && (i1 >= numKnownFigures) ) { break; }
+            for (j = i+1; j < group.length; j++) {
+                i2 = group[j];   cell2 = table.getRow(i2)*numCols + table.getCol(i2);
+                if ( (mode == KNOWN) && (i2 >= numKnownFigures) ) { break; }
+                if ( (mode == NOT_KNOWN) && (i2 < numKnownFigures) ) { continue; }
+                // fig1 is the figure of the first cell (the figures of the cells
+                // that fill a problem are indexed after those of the other cells)
+                if (cell1 < cell2) {
+                    equalities.add(createEquality(i1, i2, cell1, cell2));
+                } else if (cell1 > cell2) {
+                    equalities.add(createEquality(i2, i1, cell2, cell1));
+                }
+            }
+        }
+    }
+
+    /**
+     * Creates the equality that transforms the figure i1 into the figure i2.
+     */
+    private Equality createEquality(int i1, int i2, int cell1, int cell2) {
+        FigureTable t = table;
+        int dx = 0, dy = 0;   float sx = 1, sy = 1, r = 0;
+        boolean reflectX = false, different = false;
+        // translate
+        if ( (Math.abs(t.getPositionX(i2)-t.getPositionX(i1)) > Figure.POSITION_THRESHOLD)
+        || (Math.abs(t.getPositionY(i2)-t.getPositionY(i1)) > Figure.POSITION_THRESHOLD) ) {
+            dx = t.getPositionX(i2) - t.getPositionX(i1);
+            dy = t.getPositionY(i2) - t.getPositionY(i1);   different = true;
+        }
+        // scale
+        if ( (Math.abs(t.getScaleX(i2)-t.getScaleX(i1)) > Figure.SCALE_THRESHOLD)
+        || (Math.abs(t.getScaleY(i2)-t.getScaleY(i1)) > Figure.SCALE_THRESHOLD) ) {
+            sx = t.getScaleX(i2) / t.getScaleX(i1);
+            sy = t.getScaleY(i2) / t.getScaleY(i1);   different = true;
+        }
+        // rotate
+        if ( Math.abs(t.getRotation(i2)-t.getRotation(i1)) > Figure.ROTATION_THRESHOLD ) {
+            r = t.getRotation(i2) - t.getRotation(i1);   different = true;
+        }
+        // reflectX
+        if (t.getReflectX(i2) != t.getReflectX(i1)) {
+            reflectX = true;   different = true;
+        }
+        Equality e = new Equality();
+        e.cell1 = cell1;   e.cell2 = cell2;   e.i1 = i1;   e.i2 = i2;
+        e.diag1 = problem.cells[t.getRow(i1)][t.getCol(i1)];
+        e.diag2 = problem.cells[t.getRow(i2)][t.getCol(i2)];
+        // diag2 = T(diag1)
+        e.T = new Transformation(e.diag1);
+        if (different) { e.T.setParameters(dx, dy, sx, sy, r, reflectX); }
+        // symmetric equality diag1 = T(diag2)
+        e.symmetric = new Transformation(e.diag2);
+        if (different) { e.symmetric.setParameters(-dx, -dy, 1/sx, 1/sy, -r, reflectX); }
+        return e;
+    }
+
+    // classes -----------------------------------------------------------------
+
+    /**
+     * diag2 = T(diag1) and diag1 = symmetric(diag2).
+     */
+    static class Equality {
+        public Diagram diag1, diag2;
+        public Transformation T, symmetric;
+        private int cell1, cell2, i1, i2;   // order
+    }
+
+}
@@ -0,0 +1,37 @@
+package rule;
+
+import basic.FigureTable;
+import basic.Problem;
+import java.util.ArrayList;
+
+/**
+ * Equalities between the figures of the known cells of a problem, which are
+ * the same for every candidate solution. They are found once, by the first
+ * rule selector that needs them, and shared by the rule selectors of all the
+ * views of the problem (see Problem(Problem, Diagram[])), which only have to
+ * find the equalities that involve the filled cells.
+ */
+public class KnownEqualities {
+    private int numKnownFigures;
+    private ArrayList<EqualityFinder.Equality> equalities;   // never modified
+
+    public KnownEqualities(Problem base) {
+        numKnownFigures = base.numCellFigures;   equalities = null;
+    }
+
+    int getNumKnownFigures() {
+        return numKnownFigures;
+    }
+
+    /**
+     * Returns the equalities between the known figures of view (a view of the
+     * base problem, described by t).
+     */
+    synchronized ArrayList<EqualityFinder.Equality> get(Problem view, FigureTable t) {
+        if (equalities == null) {
+            equalities = new EqualityFinder(view, t).findKnown(numKnownFigures);
+        }
+        return equalities;
+    }
+
+}
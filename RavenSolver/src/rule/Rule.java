@@ -3,16 +3,24 @@ package rule;
 import basic.CoveredFigures;
 import basic.Diagram;
 import basic.DualDiagram;
+import basic.Figure;
 import basic.Problem;
 import java.util.ArrayList;
+import java.util.BitSet;
 
 public class Rule implements Cloneable {
     public static final int TYPE_HORIZONTAL = 0, TYPE_VERTICAL = 1;
     public CoveredFigures coveredFigures;
     public int row, col;  // result
     public int cost, level;
-    public ArrayList<Transformation> andList, andNotList;  // operands
+    public ArrayList<Transformation> andList, andNotList;  // operands (see addAnd)
     private int type;
+    private int andHash, andNotHash;   // of the operands, kept by addAnd and addAndNot
+    private Plan plan;   // compiled by evaluate() for the last problem shape
+    private static final ThreadLocal<Scratch> scratch = new ThreadLocal<Scratch>() {
+        @Override
+        protected Scratch initialValue() { return new Scratch(); }
+    };
     
     public Rule(int row, int col, Transformation T, int numCellFigures, int type) {
         if ( (row < 0) || (col < 0) || (numCellFigures < 1) ) {
@@ -24,47 +32,42 @@ public class Rule implements Cloneable {
         this.row = row;   this.col = col;   this.type = type;   cost = -1;   level = -1;
         andList = new ArrayList<Transformation>();   andList.add(T);
         andNotList = new ArrayList<Transformation>();
-        coveredFigures = new CoveredFigures(numCellFigures);
+        andHash = operandHash(T);   andNotHash = 0;
+        coveredFigures = new CoveredFigures(numCellFigures);   plan = null;
     }
 
     public void evaluate(Problem p, CoveredFigures cf, boolean missingCells) {
-        // define direction
-        int dRow = 0, dCol = 0, incRow, incCol, numIncs;
-        if (type == TYPE_HORIZONTAL) {
-            incRow = 0;   incCol = 1;   numIncs = p.cells[0].length - 1;
-        } else {
-            incRow = 1;   incCol = 0;   numIncs = p.cells.length - 1;
-        }
-        // propagate
-        int i, j, row1, col1;
-        DualDiagram dual;   Transformation T;   Diagram d;
-        for (i = 0; i <= numIncs; i++) {
-            if ( missingCells == coversAnyCell(
-            p.missingCells, dRow, dCol, p.cells.length, p.cells[0].length) ) {
-                // evaluate an instance
-                T = andList.get(0);
-                row1 = wrap(T.row + dRow, p.cells.length);
-                col1 = wrap(T.col + dCol, p.cells[0].length);
-                d = p.cells[row1][col1];   dual = new DualDiagram(T.transform(d));
-                for (j = 1; j < andList.size(); j++) {
-                    T = andList.get(j);
-                    row1 = wrap(T.row + dRow, p.cells.length);
-                    col1 = wrap(T.col + dCol, p.cells[0].length);
-                    d = p.cells[row1][col1];   dual.addPositive(T.transform(d));
-                }
-                for (j = 0; j < andNotList.size(); j++) {
-                    T = andNotList.get(j);
-                    row1 = wrap(T.row + dRow, p.cells.length);
-                    col1 = wrap(T.col + dCol, p.cells[0].length);
-                    d = p.cells[row1][col1];   dual.addNegative(T.transform(d));
-                }
-                row1 = wrap(row + dRow, p.cells.length);
-                col1 = wrap(col + dCol, p.cells[0].length);
-                d = p.cells[row1][col1];
-                dual.evaluate(d, cf);
+        evaluate(p, cf, missingCells, null);
+    }
+
+    /**
+     * Same as evaluate(p, cf, missingCells), but the transformed operands are
+     * taken from cache (if it is not null).
+     */
+    public void evaluate(Problem p, CoveredFigures cf, boolean missingCells,
+    TransformCache cache) {
+        // the transformed operands and the dual diagram are per-thread buffers
+        Scratch s = scratch.get();   DualDiagram dual = s.dual;   s.cache = cache;
+        // the cells of each instance are taken from the plan of the rule
+        Plan current = getPlan(p);
+        int i, j, k, numOperands = andList.size() + andNotList.size();
+        Diagram d;
+        for (i = 0; i < current.numInstances; i++) {
+            if (missingCells != current.missing.get(i)) { continue; }
+            // evaluate an instance (operands in andList, andNotList, and then the result)
+            s.clear();   k = i * (numOperands+1);
+            d = p.cells[current.rows[k]][current.cols[k]];   k++;
+            dual.reset(s.transform(andList.get(0), d));
+            for (j = 1; j < andList.size(); j++, k++) {
+                d = p.cells[current.rows[k]][current.cols[k]];
+                dual.addPositive(s.transform(andList.get(j), d));
             }
-            // define next instance
-            dRow += incRow;   dCol += incCol;
+            for (j = 0; j < andNotList.size(); j++, k++) {
+                d = p.cells[current.rows[k]][current.cols[k]];
+                dual.addNegative(s.transform(andNotList.get(j), d));
+            }
+            d = p.cells[current.rows[k]][current.cols[k]];
+            dual.evaluate(d, cf);
         }
     }
 
@@ -72,6 +75,19 @@ public class Rule implements Cloneable {
         return type;
     }
 
+    /**
+     * Adds an operand to andList. The operands must only be added through
+     * addAnd and addAndNot (and never removed or modified), so that the hash
+     * code does not have to be computed again.
+     */
+    public void addAnd(Transformation T) {
+        andList.add(T);   andHash += operandHash(T);
+    }
+
+    public void addAndNot(Transformation T) {
+        andNotList.add(T);   andNotHash += operandHash(T);
+    }
+
     public boolean coversAnyCell(Diagram[] cells) {
         if (cells == null) { return false; }
         for (int i = 0; i < cells.length; i++) {
@@ -125,8 +141,9 @@ public class Rule implements Cloneable {
         Rule r;
         try { r = (Rule) super.clone(); }
         catch (Exception e) { throw new RuntimeException("Unable to clone Rule"); }
-        // give a clean CoveredFigures object
-        r.coveredFigures = new CoveredFigures(coveredFigures.length());
+        // give a clean CoveredFigures object (and no plan, because the operands
+        // of clones are usually modified)
+        r.coveredFigures = new CoveredFigures(coveredFigures.length());   r.plan = null;
         // Transformation objects are shared, because they are never modified
         r.andList = new ArrayList<Transformation>(andList);
         r.andNotList = new ArrayList<Transformation>(andNotList);
@@ -141,29 +158,24 @@ public class Rule implements Cloneable {
         if ( (row != r.row) || (col != r.col) ) { return false; }
         if ( (andList.size() != r.andList.size()) ) { return false; }
         if ( (andNotList.size() != r.andNotList.size()) ) { return false; }
-        // compare andList
-        int i;   ArrayList<Transformation> tmpList;
-        tmpList = new ArrayList<Transformation>(andList);
-        for (i = 0; i < r.andList.size(); i++) {
-            if (!tmpList.remove(r.andList.get(i))) { return false; }
-        }
-        // compare andNotList
-        if (!andNotList.isEmpty()) {
-            tmpList = new ArrayList<Transformation>(andNotList);
-            for (i = 0; i < r.andNotList.size(); i++) {
-                if (!tmpList.remove(r.andNotList.get(i))) { return false; }
-            }
-        }
-        return true;
+        if ( (andHash != r.andHash) || (andNotHash != r.andNotHash) ) { return false; }
+        return ( sameOperands(andList, r.andList) && sameOperands(andNotList, r.andNotList) );
     }
 
+    /**
+     * Consistent with equals(): it only depends on the parts of the rule that
+     * equals() compares exactly, i.e., the result cell and the multisets of
+     * operands (the row, col and presence of parameters of each operand, whose
+     * parameters are compared with a tolerance). The type is not included,
+     * because equals() ignores it.
+     */
     @Override
     public int hashCode() {
         int hash = 5;
-        hash = 17 * hash + (this.coveredFigures != null ? this.coveredFigures.hashCode() : 0);
         hash = 17 * hash + this.row;
         hash = 17 * hash + this.col;
-        hash = 17 * hash + this.type;
+        hash = 17 * hash + andHash;
+        hash = 17 * hash + andNotHash;
         return hash;
     }
 
@@ -191,6 +203,80 @@ public class Rule implements Cloneable {
 
     // private methods ---------------------------------------------------------
 
+    /**
+     * Returns the plan for the shape and missing cells of p, compiling it if
+     * the last plan was compiled for another shape or another number of
+     * operands (operands are only added to rules before they are evaluated).
+     */
+    private Plan getPlan(Problem p) {
+        Plan current = plan;
+        int numRows = p.cells.length, numCols = p.cells[0].length;
+        int numOperands = andList.size() + andNotList.size();
+        if ( (current != null) && (current.numRows == numRows) && (current.numCols == numCols)
+        && (current.missingCells == p.missingCells) && (current.numOperands == numOperands) ) {
+            return current;
+        }
+        // define direction
+        int dRow = 0, dCol = 0, incRow, incCol, numIncs;
+        if (type == TYPE_HORIZONTAL) {
+            incRow = 0;   incCol = 1;   numIncs = numCols - 1;
+        } else {
+            incRow = 1;   incCol = 0;   numIncs = numRows - 1;
+        }
+        // list the cells of each instance
+        int[] rows = new int[(numIncs+1) * (numOperands+1)], cols = new int[rows.length];
+        BitSet missing = new BitSet(numIncs+1);
+        int i, j, k = 0;   Transformation T;
+        for (i = 0; i <= numIncs; i++) {
+            if (coversAnyCell(p.missingCells, dRow, dCol, numRows, numCols)) { missing.set(i); }
+            for (j = 0; j < andList.size(); j++, k++) {
+                T = andList.get(j);
+                rows[k] = wrap(T.row + dRow, numRows);   cols[k] = wrap(T.col + dCol, numCols);
+            }
+            for (j = 0; j < andNotList.size(); j++, k++) {
+                T = andNotList.get(j);
+                rows[k] = wrap(T.row + dRow, numRows);   cols[k] = wrap(T.col + dCol, numCols);
+            }
+            rows[k] = wrap(row + dRow, numRows);   cols[k] = wrap(col + dCol, numCols);   k++;
+            // define next instance
+            dRow += incRow;   dCol += incCol;
+        }
+        current = new Plan(numRows, numCols, p.missingCells, numOperands, numIncs+1,
+                rows, cols, missing);
+        plan = current;   return current;
+    }
+
+    private static int operandHash(Transformation T) {
+        // added up, so that the hash does not depend on the order of the operands
+        return 0x9E3779B1 * (31 * (31 * T.row + T.col) + (T.hasParameters() ? 1 : 0));
+    }
+
+    /**
+     * Returns true if each operand of b can be matched with a different equal
+     * operand of a, taking the first one not matched yet (as removing them
+     * from a copy of a would), without copying a.
+     */
+    private static boolean sameOperands(ArrayList<Transformation> a,
+    ArrayList<Transformation> b) {
+        if (a.size() > 64) {   // more operands than bits in the mask
+            ArrayList<Transformation> tmpList = new ArrayList<Transformation>(a);
+            for (int i = 0; i < b.size(); i++) {
+                if (!tmpList.remove(b.get(i))) { return false; }
+            }
+            return true;
+        }
+        long matched = 0;   int i, j;
+        for (i = 0; i < b.size(); i++) {
+            for (j = 0; j < a.size(); j++) {
+                if ( ((matched & (1L << j)) == 0) && b.get(i).equals(a.get(j)) ) {
+                    matched |= (1L << j);   break;
+                }
+            }
+            if (j == a.size()) { return false; }
+        }
+        return true;
+    }
+
     private boolean coversCell(Diagram cell) {
         int i;
         if (type == TYPE_HORIZONTAL) {
@@ -248,4 +334,65 @@ public class Rule implements Cloneable {
         return v;
     }
 
+    // private classes ---------------------------------------------------------
+
+    /**
+     * Cells used by each shifted instance of a rule in a problem shape (the
+     * transformation of each operand is the same in every instance), and the
+     * instances that cover any of the missing cells. Plans are immutable, so
+     * they can be shared by threads.
+     */
+    private static class Plan {
+        public final int numRows, numCols, numOperands, numInstances;
+        public final Diagram[] missingCells;
+        public final int[] rows, cols;   // numOperands+1 cells for each instance
+        public final BitSet missing;
+
+        public Plan(int numRows, int numCols, Diagram[] missingCells, int numOperands,
+        int numInstances, int[] rows, int[] cols, BitSet missing) {
+            this.numRows = numRows;   this.numCols = numCols;   this.missingCells = missingCells;
+            this.numOperands = numOperands;   this.numInstances = numInstances;
+            this.rows = rows;   this.cols = cols;   this.missing = missing;
+        }
+    }
+
+    /**
+     * Buffers used by evaluate(), so that evaluating a rule does not allocate
+     * anything once they have grown to the size of the largest instance.
+     */
+    private static class Scratch {
+        public DualDiagram dual = new DualDiagram();
+        private ArrayList<Diagram> diagrams = new ArrayList<Diagram>();
+        private ArrayList<Figure> figures = new ArrayList<Figure>();
+        private int numDiagrams = 0, numFigures = 0;   // in use
+        public TransformCache cache = null;
+
+        public void clear() {
+            numDiagrams = 0;   numFigures = 0;
+        }
+
+        /**
+         * Same as T.transform(d), but the result is taken from the cache or
+         * built with the buffers (and remains valid until clear() is called).
+         */
+        public Diagram transform(Transformation T, Diagram d) {
+            if (!T.hasParameters()) { return d; }
+            if (cache != null) { return cache.transform(T, d); }
+            Diagram r;   Figure f;
+            if (numDiagrams < diagrams.size()) {
+                r = diagrams.get(numDiagrams);   r.figures.clear();
+            } else {
+                r = new Diagram();   diagrams.add(r);
+            }
+            numDiagrams++;
+            for (int i = 0; i < d.figures.size(); i++) {
+                if (numFigures < figures.size()) { f = figures.get(numFigures); }
+                else { f = new Figure();   figures.add(f); }
+                numFigures++;
+                f.copy(d.figures.get(i));   T.transform(f);   r.figures.add(f);
+            }
+            return r;
+        }
+    }
+
 }
@@ -1,12 +1,66 @@
 package rule;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 
+/**
+ * List of rules without repetitions. The rules are also grouped by hash code
+ * (Rule.hashCode is consistent with Rule.equals), so checking whether an equal
+ * rule is already in the list only compares the rules with the same hash code.
+ * Since Rule.equals uses tolerances, they are compared as List.contains does
+ * (r.equals(e) for each rule e in the list, in order).
+ */
 public class RuleList {
-    public ArrayList<Rule> list;
+    public ArrayList<Rule> list;   // must only be modified through this class
+    private HashMap<Integer,ArrayList<Rule>> buckets;
 
     public RuleList() {
-        list = new ArrayList<Rule>();
+        list = new ArrayList<Rule>();   buckets = new HashMap<Integer,ArrayList<Rule>>();
+    }
+
+    public boolean contains(Rule r) {
+        ArrayList<Rule> bucket = buckets.get(r.hashCode());
+        if (bucket == null) { return false; }
+        for (int i = 0; i < bucket.size(); i++) {
+            if (r.equals(bucket.get(i))) { return true; }
+        }
+        return false;
+    }
+
+    /**
+     * Appends r if the list has no rule equal to it, and returns true if it
+     * was appended.
+     */
+    public boolean add(Rule r) {
+        int hash = r.hashCode();
+        ArrayList<Rule> bucket = buckets.get(hash);
+        if (bucket == null) {
+            bucket = new ArrayList<Rule>();   buckets.put(hash, bucket);
+        } else {
+            for (int i = 0; i < bucket.size(); i++) {
+                if (r.equals(bucket.get(i))) { return false; }
+            }
+        }
+        bucket.add(r);   list.add(r);   return true;
+    }
+
+    /**
+     * Removes the rules from the position size on.
+     */
+    public void truncate(int size) {
+        ArrayList<Rule> bucket;   Rule r;   int j;
+        for (int i = list.size()-1; i >= size; i--) {
+            r = list.remove(i);   bucket = buckets.get(r.hashCode());
+            // the rule itself is removed (not the first one equal to it)
+            j = bucket.size()-1;
+            while (bucket.get(j) != r) { j--; }
+            bucket.remove(j);
+            if (bucket.isEmpty()) { buckets.remove(r.hashCode()); }
+        }
+    }
+
+    public void clear() {
+        list.clear();   buckets.clear();
     }
 
 }
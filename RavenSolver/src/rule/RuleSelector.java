@@ -2,11 +2,15 @@ package rule;
 
 import basic.CoveredFigures;
 import basic.Diagram;
-import basic.Figure;
+import basic.FigureTable;
+import basic.Parallel;
 import basic.Problem;
 import optimization.*;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.Random;
 
@@ -21,16 +25,38 @@ public class RuleSelector {
     private RuleList[] hEqualities, vEqualities, hNewRules, vNewRules;
     private RuleComparator ruleComparator;
     private StringBuilder report;
+    private TransformCache transformCache;
+    private KnownEqualities knownEqualities;   // null if they are not shared
+    private int[] beamWidths;   // for each level (0 for no limit)
+    private CoverageIndex coverageIndex;   // of availableRules
 
     public RuleSelector(Problem p, int maxRules) {
-        if (maxRules < 1) { throw new IllegalArgumentException(); }
-        problem = p;   level = 1;   this.maxRules = maxRules;
+        this(p, maxRules, new TransformCache());
+    }
+
+    /**
+     * The cache may be shared by several selectors of the same problem.
+     */
+    public RuleSelector(Problem p, int maxRules, TransformCache cache) {
+        this(p, maxRules, cache, null);
+    }
+
+    /**
+     * The cache and the equalities between known figures may be shared by the
+     * selectors of several views of the same problem (with its missing cells
+     * filled).
+     */
+    public RuleSelector(Problem p, int maxRules, TransformCache cache, KnownEqualities known) {
+        if ( (maxRules < 1) || (cache == null) ) { throw new IllegalArgumentException(); }
+        problem = p;   level = 1;   this.maxRules = maxRules;   transformCache = cache;
+        knownEqualities = known;
         coveredFigures = new CoveredFigures(problem.numCellFigures);
         selectedRules = new ArrayList<Rule>();
         availableRules = new ArrayList<Rule>();
+        coverageIndex = new CoverageIndex(problem.numCellFigures);
         newRules = new ArrayList<Rule>();
         rulesToExpand = new ArrayList<Rule>();
-        ruleComparator = new RuleComparator();
+        ruleComparator = new RuleComparator();   beamWidths = new int[0];
         // create lists
         int i;
         hEqualities = new RuleList[problem.cells.length];
@@ -61,6 +87,21 @@ public class RuleSelector {
         return level;
     }
 
+    /**
+     * Limits the rules of the given level (3 or more) generated by the expansion
+     * of each rule to the width ones with the best positive coverage per cost
+     * (0 for no limit, the default).
+     */
+    public void setBeamWidth(int level, int width) {
+        if ( (level < 3) || (width < 0) ) { throw new IllegalArgumentException(); }
+        if (level >= beamWidths.length) { beamWidths = Arrays.copyOf(beamWidths, level+1); }
+        beamWidths[level] = width;
+    }
+
+    public int getBeamWidth(int level) {
+        return (level < beamWidths.length) ? beamWidths[level] : 0;
+    }
+
     /**
      * Must be called always after the selectedRules of this object are modified externally,
      * so that the coveredFigures and the report are updated with the new rules.
@@ -79,6 +120,7 @@ public class RuleSelector {
         generateRules(true);   coveredFigures.clear();   selectedRules.clear();
         if (availableRules.isEmpty()) { return; }
         Collections.sort(availableRules, ruleComparator);
+        coverageIndex.clear();   coverageIndex.update(availableRules);
         report = new StringBuilder();
         int i = 0;   Rule r;
         do {
@@ -94,32 +136,68 @@ public class RuleSelector {
         report.append("/").append(problem.numCellFigures).append(" cell figures\n");
     }
 
+    /**
+     * Selects, each time, the rule with the largest coverage increment (the
+     * one with the lowest cost, and then the first one, on ties).
+     * Invariant: the increment of each rule is exact (when a rule is selected,
+     * the figures it covers for the first time are subtracted, through the
+     * coverage index, from the rules that cover them), and buckets[b] holds
+     * the ranks of the rules whose increment is b > 0, where the rank is the
+     * position of a rule ordered by cost and then by index. So the first rank
+     * of the highest non-empty bucket is always the next rule to select.
+     */
     public void greedySelection() {
-        int coverage = 0, i, inc, maxInc;
+        int coverage = 0, i, inc, f, k, b, top = 0;
         generateRules(true);   coveredFigures.clear();   selectedRules.clear();
         if (availableRules.isEmpty()) { return; }
-        Rule bestRule;   boolean done = false;
+        coverageIndex.update(availableRules);
+        // rank the rules (the sort is stable, so ties keep the index order)
+        Integer[] order = new Integer[availableRules.size()];
+        for (i = 0; i < order.length; i++) { order[i] = i; }
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer i1, Integer i2) {
+                return ruleComparator.compare(availableRules.get(i1), availableRules.get(i2));
+            }
+        });
+        int[] rank = new int[order.length], increment = new int[order.length];
+        for (i = 0; i < order.length; i++) { rank[order[i]] = i; }
+        BitSet[] buckets = new BitSet[problem.numCellFigures+1];
+        for (i = 0; i < order.length; i++) {
+            inc = availableRules.get(i).coveredFigures.getPositiveCoverage();
+            increment[i] = inc;
+            if (inc == 0) { continue; }
+            if (buckets[inc] == null) { buckets[inc] = new BitSet(order.length); }
+            buckets[inc].set(rank[i]);   top = Math.max(top, inc);
+        }
+        Rule bestRule;   boolean done = false;   int j;
         report = new StringBuilder();
-        do {
-            bestRule = null;   maxInc = 0;
-            for (i = 0; i < availableRules.size(); i++) {
-                inc = availableRules.get(i).coveredFigures.getAdditionalPositiveCoverage(coveredFigures);
-                if (inc > maxInc) {
-                    maxInc = inc;   bestRule = availableRules.get(i);
-                } else if ( (inc > 0) && (inc == maxInc)
-                && (ruleComparator.compare(availableRules.get(i), bestRule) < 0) ) {
-                    bestRule = availableRules.get(i);
+        while (!done) {
+            while ( (top > 0) && ((buckets[top] == null) || buckets[top].isEmpty()) ) { top--; }
+            if (top == 0) { break; }
+            i = order[buckets[top].nextSetBit(0)];   inc = top;
+            buckets[inc].clear(rank[i]);   increment[i] = 0;
+            // the figures covered for the first time are no longer an increment
+            // for any rule
+            bestRule = availableRules.get(i);
+            for (f = bestRule.coveredFigures.nextPositive(0); f >= 0;
+            f = bestRule.coveredFigures.nextPositive(f+1)) {
+                if (coveredFigures.isPositive(f)) { continue; }
+                for (k = 0; k < coverageIndex.size(f); k++) {
+                    j = coverageIndex.get(f, k);   b = increment[j];
+                    if (b == 0) { continue; }   // the selected rule
+                    buckets[b].clear(rank[j]);   increment[j] = b-1;
+                    if (b > 1) {
+                        if (buckets[b-1] == null) { buckets[b-1] = new BitSet(order.length); }
+                        buckets[b-1].set(rank[j]);
+                    }
                 }
             }
-            if (maxInc == 0) { done = true; }
-            else {
-                selectedRules.add(bestRule);   coverage += maxInc;
-                coveredFigures.add(bestRule.coveredFigures);
-                report.append(bestRule).append("; coverageInc: ").append(maxInc).append("\n");
-                if ( (selectedRules.size() == maxRules)
-                || (coverage == problem.numCellFigures) ) { done = true; }
-            }
-        } while (!done);
+            selectedRules.add(bestRule);   coverage += inc;
+            coveredFigures.add(bestRule.coveredFigures);
+            report.append(bestRule).append("; coverageInc: ").append(inc).append("\n");
+            if ( (selectedRules.size() == maxRules)
+            || (coverage == problem.numCellFigures) ) { done = true; }
+        }
         report.append("Covered ").append(coveredFigures.getCoverage());
         report.append("/").append(problem.numCellFigures).append(" cell figures\n");
     }
@@ -192,18 +270,29 @@ public class RuleSelector {
             if (rulesToExpand.isEmpty()) { return; }
         }
         // clear hNewRules and vNewRules
-        for (i = 0; i < hNewRules.length; i++) { hNewRules[i].list.clear(); }
-        for (i = 0; i < vNewRules.length; i++) { vNewRules[i].list.clear(); }
-        // expand rules to fill hNewRules and vNewRules
+        for (i = 0; i < hNewRules.length; i++) { hNewRules[i].clear(); }
+        for (i = 0; i < vNewRules.length; i++) { vNewRules[i].clear(); }
+        // expand rules to fill hNewRules and vNewRules (each list only receives
+        // the rules of its row or column, so the lists can be filled at the same
+        // time, each one by a single task that expands its rules in order)
+        final ArrayList<ArrayList<Rule>> buckets = new ArrayList<ArrayList<Rule>>();
+        for (i = 0; i < hNewRules.length + vNewRules.length; i++) {
+            buckets.add(new ArrayList<Rule>());
+        }
         Rule r;
         for (i = 0; i < rulesToExpand.size(); i++) {
             r = rulesToExpand.get(i);
-            if (r.getType() == Rule.TYPE_HORIZONTAL) {
-                expandAndListH(r);   expandAndNotListH(r);
-            } else {
-                expandAndListV(r);   expandAndNotListV(r);
-            }
+            if (r.getType() == Rule.TYPE_HORIZONTAL) { buckets.get(r.row).add(r); }
+            else { buckets.get(hNewRules.length + r.col).add(r); }
         }
+        for (i = buckets.size()-1; i >= 0; i--) {
+            if (buckets.get(i).isEmpty()) { buckets.remove(i); }
+        }
+        Parallel.forRange(0, buckets.size(), 1, new Parallel.Body() {
+            public void run(int start, int end) {
+                for (int i = start; i < end; i++) { expand(buckets.get(i)); }
+            }
+        });
         // update newRules
         newRules.clear();
         for (i = 0; i < hNewRules.length; i++) {
@@ -215,17 +304,64 @@ public class RuleSelector {
         level++;   initializeNewRules(level);   availableRules.addAll(newRules);
     }
     
+    private void expand(ArrayList<Rule> rules) {
+        Rule r;   RuleList children;   int first, width = getBeamWidth(level+1);
+        for (int i = 0; i < rules.size(); i++) {
+            r = rules.get(i);
+            if (r.getType() == Rule.TYPE_HORIZONTAL) {
+                children = hNewRules[r.row];   first = children.list.size();
+                expandAndListH(r);   expandAndNotListH(r);
+            } else {
+                children = vNewRules[r.col];   first = children.list.size();
+                expandAndListV(r);   expandAndNotListV(r);
+            }
+            if ( (width > 0) && (children.list.size() - first > width) ) {
+                keepBest(children, first, width);
+            }
+        }
+    }
+
+    /**
+     * Keeps only the width rules of the list from the position first on with
+     * the best positive coverage per cost (the first generated, on ties), in
+     * the order in which they were generated.
+     */
+    private void keepBest(RuleList list, int first, int width) {
+        ArrayList<Rule> children = new ArrayList<Rule>(list.list.subList(first, list.list.size()));
+        final double[] score = new double[children.size()];
+        Integer[] order = new Integer[children.size()];
+        ArrayList<Rule> tmpList = new ArrayList<Rule>(1);   Rule r;   int i;
+        for (i = 0; i < children.size(); i++) {
+            r = children.get(i);   tmpList.clear();   tmpList.add(r);
+            score[i] = r.coveredFigures.getPositiveCoverage()
+                    / (double) Math.max(1, Utils.cost(tmpList, problem.numCellFigures));
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer i1, Integer i2) {
+                if (score[i1] != score[i2]) { return (score[i1] > score[i2]) ? -1 : 1; }
+                return i1 - i2;
+            }
+        });
+        boolean[] kept = new boolean[children.size()];
+        for (i = 0; i < width; i++) { kept[order[i]] = true; }
+        list.truncate(first);
+        for (i = 0; i < children.size(); i++) {
+            if (kept[i]) { list.add(children.get(i)); }
+        }
+    }
+
     private void expandAndListH(Rule r) {
         Rule newRule;   Transformation T;   int i;
         ArrayList<Rule> resultEquals = hEqualities[r.row].list;
         for (i = 0; i < resultEquals.size(); i++) {
             T = resultEquals.get(i).andList.get(0);
             if (!r.hasOperand(T)) {
-                newRule = (Rule) r.clone();   newRule.andList.add(T);
-                if (!hNewRules[r.row].list.contains(newRule)) {
-                    newRule.evaluate(problem, newRule.coveredFigures, false);
+                newRule = (Rule) r.clone();   newRule.addAnd(T);
+                if (!hNewRules[r.row].contains(newRule)) {
+                    newRule.evaluate(problem, newRule.coveredFigures, false, transformCache);
                     if (newRule.coveredFigures.getPositiveCoverage() > 0) {
-                        hNewRules[r.row].list.add(newRule);
+                        hNewRules[r.row].add(newRule);
                     }
                 }
             }
@@ -238,11 +374,11 @@ public class RuleSelector {
         for (i = 0; i < resultEquals.size(); i++) {
             T = resultEquals.get(i).andList.get(0);
             if (!r.hasOperand(T)) {
-                newRule = (Rule) r.clone();   newRule.andList.add(T);
-                if (!vNewRules[r.col].list.contains(newRule)) {
-                    newRule.evaluate(problem, newRule.coveredFigures, false);
+                newRule = (Rule) r.clone();   newRule.addAnd(T);
+                if (!vNewRules[r.col].contains(newRule)) {
+                    newRule.evaluate(problem, newRule.coveredFigures, false, transformCache);
                     if (newRule.coveredFigures.getPositiveCoverage() > 0) {
-                        vNewRules[r.col].list.add(newRule);
+                        vNewRules[r.col].add(newRule);
                     }
                 }
             }
@@ -261,11 +397,11 @@ public class RuleSelector {
                 if (T2.col >= problem.cells[0].length) { T2.col -= problem.cells[0].length; }
                 operand.transform(T2);
                 if (!r.hasOperand(T2)) {
-                    newRule = (Rule) r.clone();   newRule.andNotList.add(T2);
-                    if (!hNewRules[r.row].list.contains(newRule)) {
-                        newRule.evaluate(problem, newRule.coveredFigures, false);
+                    newRule = (Rule) r.clone();   newRule.addAndNot(T2);
+                    if (!hNewRules[r.row].contains(newRule)) {
+                        newRule.evaluate(problem, newRule.coveredFigures, false, transformCache);
                         if (newRule.coveredFigures.getPositiveCoverage() > 0) {
-                            hNewRules[r.row].list.add(newRule);
+                            hNewRules[r.row].add(newRule);
                         }
                     }
                 }
@@ -285,11 +421,11 @@ public class RuleSelector {
                 if (T2.row >= problem.cells.length) { T2.row -= problem.cells.length; }
                 operand.transform(T2);
                 if (!r.hasOperand(T2)) {
-                    newRule = (Rule) r.clone();   newRule.andNotList.add(T2);
-                    if (!vNewRules[r.col].list.contains(newRule)) {
-                        newRule.evaluate(problem, newRule.coveredFigures, false);
+                    newRule = (Rule) r.clone();   newRule.addAndNot(T2);
+                    if (!vNewRules[r.col].contains(newRule)) {
+                        newRule.evaluate(problem, newRule.coveredFigures, false, transformCache);
                         if (newRule.coveredFigures.getPositiveCoverage() > 0) {
-                            vNewRules[r.col].list.add(newRule);
+                            vNewRules[r.col].add(newRule);
                         }
                     }
                 }
@@ -298,10 +434,7 @@ public class RuleSelector {
     }
 
     private void createEqualities() {
-        int numCols = problem.cells[0].length, numCells = problem.cells.length*numCols;
-        int i, j, k, m;
-        Diagram diag1, diag2;
-        Figure fig1, fig2;
+        int i, j, k;
         boolean postMode = problem.missingCells == null;
         // clear matrix
         if (!postMode) { for (i = 0; i < problem.missingCells.length; i++) {
@@ -309,24 +442,21 @@ public class RuleSelector {
                 k = problem.missingCells[i].col;
                 problem.cells[j][k] = null;
         } }
-        // create equalities (empty and missing diagrams are ignored)
-        for (i = 0; i <= numCells-2; i++) {
-            diag1 = problem.cells[i/numCols][i%numCols];
-            if ( (diag1 != null) && (!diag1.figures.isEmpty()) ) {
-                for (j = i+1; j <= numCells-1; j++) {
-                    diag2 = problem.cells[j/numCols][j%numCols];
-                    if ( (diag2 != null) && (!diag2.figures.isEmpty()) ) {
-                        for (k = 0; k < diag1.figures.size(); k++) {
-                            fig1 = diag1.figures.get(k);
-                            for (m = 0; m < diag2.figures.size(); m++) {
-                                fig2 = diag2.figures.get(m);
-                                // transform fig1 into fig2, if possible
-                                createEquality(fig1,fig2);
-                            }
-                        }
-                    }
-                }
-            }
+        // create equalities (empty and missing diagrams are ignored), in the
+        // order of the cells and figures of the matrix
+        FigureTable table = new FigureTable(problem);
+        EqualityFinder finder = new EqualityFinder(problem, table);
+        ArrayList<EqualityFinder.Equality> equalities;
+        if (postMode && (knownEqualities != null)) {
+            equalities = finder.find(knownEqualities.get(problem, table),
+                    knownEqualities.getNumKnownFigures());
+        } else { equalities = finder.find(); }
+        EqualityFinder.Equality e;
+        for (i = 0; i < equalities.size(); i++) {
+            // the equalities may be shared, and saveEquality modifies them
+            e = equalities.get(i);
+            saveEquality(e.diag2, (Transformation) e.T.clone());
+            saveEquality(e.diag1, (Transformation) e.symmetric.clone());
         }
         // fill availableRules and newRules
         Rule r;   newRules.clear();
@@ -334,7 +464,7 @@ public class RuleSelector {
             for (j = 0; j < hEqualities[i].list.size(); j++) {
                 r = hEqualities[i].list.get(j);
                 if (postMode || r.coversAnyCell(problem.missingCells)) {
-                    r.evaluate(problem, r.coveredFigures, false);
+                    r.evaluate(problem, r.coveredFigures, false, transformCache);
                     newRules.add(r);
                 }
             }
@@ -343,7 +473,7 @@ public class RuleSelector {
             for (j = 0; j < vEqualities[i].list.size(); j++) {
                 r = vEqualities[i].list.get(j);
                 if (postMode || r.coversAnyCell(problem.missingCells)) {
-                    r.evaluate(problem, r.coveredFigures, false);
+                    r.evaluate(problem, r.coveredFigures, false, transformCache);
                     newRules.add(r);
                 }
             }
@@ -351,54 +481,18 @@ public class RuleSelector {
         initializeNewRules(2);   availableRules.addAll(newRules);
     }
 
-    private void createEquality(Figure fig1, Figure fig2) {
-        if ( !fig1.getName().equals(fig2.getName()) ) { return; }
-        int dx = 0, dy = 0;   float sx = 1, sy = 1, r = 0;
-        boolean reflectX = false, different = false;
-        // translate
-        if ( (Math.abs(fig2.getPositionX()-fig1.getPositionX()) > Figure.POSITION_THRESHOLD)
-        || (Math.abs(fig2.getPositionY()-fig1.getPositionY()) > Figure.POSITION_THRESHOLD) ) {
-            dx = fig2.getPositionX() - fig1.getPositionX();
-            dy = fig2.getPositionY() - fig1.getPositionY();   different = true;
-        }
-        // scale
-        if ( (Math.abs(fig2.getScaleX()-fig1.getScaleX()) > Figure.SCALE_THRESHOLD)
-        || (Math.abs(fig2.getScaleY()-fig1.getScaleY()) > Figure.SCALE_THRESHOLD) ) {
-            sx = fig2.getScaleX() / fig1.getScaleX();
-            sy = fig2.getScaleY() / fig1.getScaleY();   different = true;
-        }
-        // rotate
-        if ( Math.abs(fig2.getRotation()-fig1.getRotation()) > Figure.ROTATION_THRESHOLD ) {
-            r = fig2.getRotation() - fig1.getRotation();   different = true;
-        }
-        // reflectX
-        if (fig2.getReflectX() != fig1.getReflectX()) {
-            reflectX = true;   different = true;
-        }
-        // create equality diag2 = T(diag1)
-        Transformation T = new Transformation(fig1.getDiagram());
-        if (different) { T.setParameters(dx, dy, sx, sy, r, reflectX); }
-        saveEquality(fig2.getDiagram(), T);
-        // create symmetric equality diag1 = T(diag2)
-        T = new Transformation(fig2.getDiagram());
-        if (different) { T.setParameters(-dx, -dy, 1/sx, 1/sy, -r, reflectX); }
-        saveEquality(fig1.getDiagram(), T);
-    }
-
     private void saveEquality(Diagram result, Transformation T) {
         // save horizontal equality (the result is shifted to the first column)
         Transformation Th = (Transformation) T.clone();
         Th.col -= result.col;
         if (Th.col < 0) { Th.col += problem.cells[0].length; }
         Rule r = new Rule(result.row, 0, Th, problem.numCellFigures, Rule.TYPE_HORIZONTAL);
-        int ruleIndex = hEqualities[result.row].list.indexOf(r);
-        if (ruleIndex < 0) { hEqualities[result.row].list.add(r); }
+        hEqualities[result.row].add(r);
         // save vertical equality (the result is shifted to the first row)
         T.row -= result.row;
         if (T.row < 0) { T.row += problem.cells.length; }
         r = new Rule(0, result.col, T, problem.numCellFigures, Rule.TYPE_VERTICAL);
-        ruleIndex = vEqualities[result.col].list.indexOf(r);
-        if (ruleIndex < 0) { vEqualities[result.col].list.add(r); }
+        vEqualities[result.col].add(r);
     }
 
     private void initializeNewRules(int currentLevel) {
@@ -411,18 +505,18 @@ public class RuleSelector {
     }
 
     private boolean debug() {
-        selectedRules.clear();   availableRules.clear();
+        selectedRules.clear();   availableRules.clear();   coverageIndex.clear();
         // (0,3) = (0,0)
         Diagram d = new Diagram();   d.row = 0;   d.col = 0;
         Transformation T = new Transformation(d);
         Rule r = new Rule(0,3, T, problem.numCellFigures, Rule.TYPE_VERTICAL);
         // and (0,1) rotate -45
         T = new Transformation(d);   T.col = 1;
-        T.setParameters(0,0, 1f,1f, -45f, false);   r.andList.add(T);
+        T.setParameters(0,0, 1f,1f, -45f, false);   r.addAnd(T);
         // andNot (0,2)
-        T = new Transformation(d);   T.col = 2;   r.andNotList.add(T);
+        T = new Transformation(d);   T.col = 2;   r.addAndNot(T);
         // evaluate
-        r.evaluate(problem, r.coveredFigures, false);
+        r.evaluate(problem, r.coveredFigures, false, transformCache);
         availableRules.add(r);   selectedRules.add(r);
         updateSelectedRules();   return true;
     }
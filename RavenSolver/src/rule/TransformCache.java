@@ -0,0 +1,119 @@
+package rule;
+
+import basic.Diagram;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded cache of the diagrams produced by Transformation.transform for the
+ * rules of a problem. Entries are keyed by the source diagram (by identity)
+ * and the exact parameters of the transformation.
+ * <p>
+ * Since source diagrams are compared by identity, placing another diagram into
+ * a cell (e.g., an answer into a missing cell) never returns the entries of
+ * the previous one, so entries never have to be invalidated; the source
+ * diagrams must not be modified in place, and neither must the cached ones,
+ * which are shared.
+ * <p>
+ * The cache can be used by several threads at the same time: the entries are
+ * spread by hash code over SEGMENTS segments, each one with its own lock and
+ * its own share of the capacity, so the candidates that are evaluated in
+ * parallel rarely wait for each other. The least recently used entry of a
+ * segment is evicted when the segment is full (an approximation of a global
+ * LRU order).
+ */
+public class TransformCache {
+    public static final int DEFAULT_CAPACITY = 4096;
+    private static final int SEGMENTS = 16;   // a power of 2
+    private Segment[] segments;
+    private static final ThreadLocal<Key> probe = new ThreadLocal<Key>() {
+        @Override
+        protected Key initialValue() { return new Key(); }
+    };
+
+    public TransformCache() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public TransformCache(int capacity) {
+        if (capacity < 1) { throw new IllegalArgumentException("Invalid capacity: " + capacity); }
+        segments = new Segment[SEGMENTS];
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment((capacity + SEGMENTS-1) / SEGMENTS);
+        }
+    }
+
+    /**
+     * Returns T.transform(d), which is only computed if it is not cached.
+     */
+    public Diagram transform(Transformation T, Diagram d) {
+        if (!T.hasParameters()) { return d; }
+        // look up with a per-thread key, so hits do not allocate anything
+        Key key = probe.get();   key.set(d, T.getParameters());   Diagram r;
+        int h = key.hashCode();
+        Segment segment = segments[(h ^ (h >>> 16)) & (SEGMENTS-1)];
+        synchronized (segment) {
+            r = segment.get(key);
+            if (r != null) { return r; }
+        }
+        r = T.transform(d);
+        key = new Key();   key.set(d, (TransformationParameters) T.getParameters().clone());
+        synchronized (segment) { segment.put(key, r); }
+        return r;
+    }
+
+    public void clear() {
+        for (int i = 0; i < SEGMENTS; i++) {
+            synchronized (segments[i]) { segments[i].clear(); }
+        }
+    }
+
+    public int size() {
+        int size = 0;
+        for (int i = 0; i < SEGMENTS; i++) {
+            synchronized (segments[i]) { size += segments[i].size(); }
+        }
+        return size;
+    }
+
+    // private classes ---------------------------------------------------------
+
+    /**
+     * Access-ordered map that evicts its eldest entry beyond its capacity.
+     */
+    private static class Segment extends LinkedHashMap<Key,Diagram> {
+        private static final long serialVersionUID = 1L;
+        private int capacity;
+
+        public Segment(int capacity) {
+            super(16, 0.75f, true);   this.capacity = capacity;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key,Diagram> eldest) {
+            return (size() > capacity);
+        }
+    }
+
+    private static class Key {
+        private Diagram d;
+        private TransformationParameters P;
+
+        public void set(Diagram d, TransformationParameters P) {
+            this.d = d;   this.P = P;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if ( !(o instanceof Key) ) { return false; }
+            Key k = (Key) o;
+            return ( (d == k.d) && P.sameValues(k.P) );
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * System.identityHashCode(d) + P.hashCode();
+        }
+    }
+
+}
@@ -23,6 +23,10 @@ public class Transformation implements Cloneable {
         return (P != null);
     }
 
+    TransformationParameters getParameters() {
+        return P;
+    }
+
     public Diagram transform(Diagram d) {
         if (!hasParameters()) { return d; }
         Diagram r = new Diagram();   Figure f;
@@ -33,6 +37,13 @@ public class Transformation implements Cloneable {
         return r;
     }
 
+    /**
+     * Transforms f in place.
+     */
+    public void transform(Figure f) {
+        if (hasParameters()) { P.transform(f); }
+    }
+
     public void transform(Transformation t) {
         if (!hasParameters()) { return; }
         if (!t.hasParameters()) {
@@ -32,6 +32,17 @@ public class TransformationParameters implements Cloneable {
         if (rX) { p.rX = !p.rX; }
     }
 
+    /**
+     * Exact comparison (equals() allows the same differences as Figure.equals).
+     */
+    boolean sameValues(TransformationParameters p) {
+        return ( (dx == p.dx) && (dy == p.dy)
+                && (Float.floatToIntBits(sx) == Float.floatToIntBits(p.sx))
+                && (Float.floatToIntBits(sy) == Float.floatToIntBits(p.sy))
+                && (Float.floatToIntBits(r) == Float.floatToIntBits(p.r))
+                && (rX == p.rX) );
+    }
+
     @Override
     public Object clone() {
         TransformationParameters p;